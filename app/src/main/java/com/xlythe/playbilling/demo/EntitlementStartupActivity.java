@@ -0,0 +1,74 @@
+package com.xlythe.playbilling.demo;
+
+import android.os.Bundle;
+import android.widget.TextView;
+
+import androidx.annotation.Nullable;
+import androidx.tracing.Trace;
+
+import com.android.billingclient.api.Purchase;
+import com.android.vending.billing.util.PurchaseActivity;
+import com.xlythe.playbilling.FakeBillingBackend;
+import com.xlythe.playbilling.SupportBillingClient;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A scripted startup scenario: launch, restore purchases, and report fully drawn as soon as the
+ * user is entitled. It runs against a {@link FakeBillingBackend} so that it works on an offline
+ * emulator, and the macrobenchmark module measures it as time to full display.
+ */
+public class EntitlementStartupActivity extends PurchaseActivity {
+  static final String PRODUCT_ID = "premium";
+  private static final String TRACE_SECTION = "TimeToFirstEntitlement";
+
+  // Created once per process, as replacing the backend shuts down every client using the old one.
+  @Nullable private static FakeBillingBackend sBackend;
+
+  private TextView mStatusView;
+  private boolean mEntitled;
+
+  @Override
+  protected void onCreate(@Nullable Bundle savedInstanceState) {
+    getBackend();
+
+    // Everything from here on is billing's startup cost, excluding the fake's key generation.
+    Trace.beginAsyncSection(TRACE_SECTION, 0);
+    super.onCreate(savedInstanceState);
+    mStatusView = new TextView(this);
+    mStatusView.setText("Restoring purchases…");
+    setContentView(mStatusView);
+  }
+
+  @Override
+  protected String getKey() {
+    return getBackend().getPublicKey();
+  }
+
+  @Override
+  protected List<String> getProductIds() {
+    return Collections.singletonList(PRODUCT_ID);
+  }
+
+  private static synchronized FakeBillingBackend getBackend() {
+    if (sBackend == null) {
+      sBackend = new FakeBillingBackend();
+      sBackend.addPurchase(PRODUCT_ID);
+      SupportBillingClient.setBillingBackendFactory(sBackend);
+    }
+    return sBackend;
+  }
+
+  @Override
+  public void onPurchaseFound(String productId, Purchase purchase) {
+    if (mEntitled) {
+      return;
+    }
+
+    mEntitled = true;
+    Trace.endAsyncSection(TRACE_SECTION, 0);
+    mStatusView.setText("Entitled to " + productId);
+    reportFullyDrawn();
+  }
+}
@@ -3,14 +3,27 @@ package com.xlythe.playbilling.demo;
 import android.app.Activity;
 import android.os.Bundle;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.xlythe.playbilling.SupportBillingClient;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class MainActivity extends Activity {
+  private static final String API_KEY = "foo";
+
   @Override
   protected void onCreate(@Nullable Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    SupportBillingClient.getInstance(this, "foo").purchaseItem("bar");
+    SupportBillingClient.getInstance(getApplicationContext(), API_KEY).purchaseItem(this, "bar");
+  }
+
+  /** Adds billing to {@code adb shell dumpsys activity com.xlythe.playbilling.demo/.MainActivity}. */
+  @Override
+  public void dump(@NonNull String prefix, @Nullable FileDescriptor fd, @NonNull PrintWriter writer, @Nullable String[] args) {
+    super.dump(prefix, fd, writer, args);
+    SupportBillingClient.getInstance(getApplicationContext(), API_KEY).dump(prefix, writer);
   }
 }
@@ -0,0 +1,63 @@
+package com.xlythe.playbilling.macrobenchmark;
+
+import android.content.Intent;
+
+import androidx.benchmark.macro.BaselineProfileMode;
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Cold starts the demo's EntitlementStartupActivity, which reports fully drawn once the first
+ * purchase has been restored. timeToFullDisplayMs is therefore the time to first entitlement.
+ * There's no threshold here; regressions are tracked by comparing the benchmark's JSON output
+ * across runs in CI.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EntitlementStartupBenchmark {
+    private static final String PACKAGE_NAME = "com.xlythe.playbilling.demo";
+    private static final String ACTION_ENTITLEMENT_STARTUP = "com.xlythe.playbilling.demo.ENTITLEMENT_STARTUP";
+
+    @Rule
+    public final MacrobenchmarkRule mBenchmarkRule = new MacrobenchmarkRule();
+
+    @Test
+    public void coldStartToFirstEntitlement() {
+        measure(new CompilationMode.None());
+    }
+
+    // The demo ships no baseline profile, so this compiles what a few warmup runs exercise instead.
+    @Test
+    public void coldStartToFirstEntitlementPartiallyCompiled() {
+        measure(new CompilationMode.Partial(BaselineProfileMode.Disable, 3));
+    }
+
+    private void measure(CompilationMode compilationMode) {
+        mBenchmarkRule.measureRepeated(
+                PACKAGE_NAME,
+                Collections.singletonList(new StartupTimingMetric()),
+                compilationMode,
+                StartupMode.COLD,
+                10,
+                scope -> {
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    Intent intent = new Intent(ACTION_ENTITLEMENT_STARTUP);
+                    intent.setPackage(PACKAGE_NAME);
+                    scope.startActivityAndWait(intent);
+                    return Unit.INSTANCE;
+                });
+    }
+}
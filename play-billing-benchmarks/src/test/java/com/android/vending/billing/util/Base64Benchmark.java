@@ -0,0 +1,55 @@
+package com.android.vending.billing.util;
+
+import com.xlythe.playbilling.benchmarks.Fixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Base64Benchmark {
+    // A 2048 bit public key, which is ~392 characters once encoded.
+    private String mPublicKey;
+    // A 2048 bit signature, which is ~344 characters once encoded.
+    private String mSignature;
+    // The raw bytes of a purchase, which is what a signature is computed over.
+    private byte[] mPurchaseBytes;
+
+    @Setup
+    public void setUp() {
+        String json = Fixtures.purchaseJson("premium", 0);
+        mPublicKey = Fixtures.publicKey();
+        mSignature = Fixtures.sign(json);
+        mPurchaseBytes = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] decodePublicKey() throws Base64.DecoderException {
+        return Base64.decode(mPublicKey);
+    }
+
+    @Benchmark
+    public byte[] decodeSignature() throws Base64.DecoderException {
+        return Base64.decode(mSignature);
+    }
+
+    @Benchmark
+    public String encodePurchase() {
+        return Base64.encode(mPurchaseBytes);
+    }
+}
@@ -0,0 +1,89 @@
+package com.xlythe.playbilling;
+
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.google.android.gms.tasks.Task;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full restore: queryPurchases against a {@link FakeBillingBackend} owning N purchases, through
+ * verification and onPurchaseFound, until every listener callback has run. Purchases are found
+ * either in the Play Store's cache or, as after a reinstall, only in the purchase history.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurchaseDispatchBenchmark {
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int purchaseCount;
+
+    @Param({"cache", "history"})
+    public String source;
+
+    private SupportBillingClient mBillingClient;
+    private List<String> mProductIds;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        FakeBillingBackend backend = new FakeBillingBackend();
+        backend.setPurchasesCached("cache".equals(source));
+        mProductIds = new ArrayList<>(purchaseCount);
+        for (int i = 0; i < purchaseCount; i++) {
+            String productId = "product_" + i;
+            mProductIds.add(productId);
+            backend.addPurchase(productId);
+        }
+
+        // Callbacks run inline, as there's no UI thread on the host.
+        mBillingClient = new SupportBillingClient(null, backend.getPublicKey(), backend, Runnable::run);
+        mBillingClient.registerPurchaseListener(new ArrayList<>(), new SupportBillingClient.PurchaseListener() {
+            @Override
+            public void onPurchaseFound(Purchase purchase) {
+                mBlackhole.consume(purchase);
+            }
+
+            @Override
+            public void onPurchaseLost(String productId) {
+                mBlackhole.consume(productId);
+            }
+        });
+    }
+
+    @Benchmark
+    public BillingResult queryPurchases() throws InterruptedException {
+        return await(mBillingClient.queryPurchases(mProductIds));
+    }
+
+    // Tasks.await refuses to run without a Looper, so we wait for the result ourselves.
+    static <T> T await(Task<T> task) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        task.addOnCompleteListener(Runnable::run, t -> latch.countDown());
+        latch.await();
+        if (!task.isSuccessful()) {
+            throw new IllegalStateException(task.getException());
+        }
+        return task.getResult();
+    }
+}
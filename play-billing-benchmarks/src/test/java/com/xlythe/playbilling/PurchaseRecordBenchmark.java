@@ -0,0 +1,44 @@
+package com.xlythe.playbilling;
+
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+import com.xlythe.playbilling.benchmarks.Fixtures;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a purchase history record with {@link PurchaseRecord}, compared to the old round trip
+ * through {@link Purchase} (see PurchaseParsingBenchmark#parseHistoryRecordAsPurchase).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurchaseRecordBenchmark {
+    private PurchaseHistoryRecord mHistoryRecord;
+
+    @Setup
+    public void setUp() throws JSONException {
+        String json = Fixtures.purchaseJson("premium", 0);
+        mHistoryRecord = new PurchaseHistoryRecord(json, Fixtures.sign(json));
+    }
+
+    @Benchmark
+    public PurchaseRecord parseHistoryRecord() throws JSONException {
+        return PurchaseRecord.parse(mHistoryRecord.getOriginalJson(), mHistoryRecord.getSignature());
+    }
+}
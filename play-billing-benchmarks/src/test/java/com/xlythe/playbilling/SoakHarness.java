@@ -0,0 +1,601 @@
+package com.xlythe.playbilling;
+
+import android.app.Activity;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient.ProductType;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.tasks.Task;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A soak test of {@link SupportBillingClient} against a {@link FakeBillingBackend} that
+ * misbehaves: its callbacks arrive late, on a thread of their own, and the connection drops at
+ * random. Meanwhile, listeners are registered and unregistered in a tight loop, purchases are made
+ * concurrently and restores of thousands of purchases run on repeat, for a fixed duration.
+ *
+ * Afterwards it reports the throughput and latency percentiles of each operation, how long work
+ * waited on the billing executor, the allocation rate and any tasks left behind on the executor.
+ * It exits non-zero if anything hung, failed unexpectedly, leaked or broke the single threaded
+ * executor design, so it can gate a build.
+ *
+ *   ./gradlew :play-billing-benchmarks:soak
+ *   ./gradlew :play-billing-benchmarks:soak -Psoak.args="durationSeconds=300 purchases=10000"
+ */
+public final class SoakHarness {
+    /** The knobs, each settable from the command line as key=value. */
+    static final class Options {
+        // How long to run the workload for.
+        long durationSeconds = 30;
+        // How many purchases the user owns before we start.
+        int purchases = 2000;
+        // Threads registering and unregistering listeners.
+        int listenerThreads = 4;
+        // How many products each listener asks about.
+        int productsPerListener = 20;
+        // Threads buying products, each one a new product.
+        int purchaseThreads = 4;
+        // How often all of the owned purchases are restored.
+        long restoreIntervalMillis = 500;
+        // On average, how often the Play Store drops our connection. 0 to never drop it.
+        long disconnectIntervalMillis = 250;
+        // The most that a callback from the Play Store is delayed by.
+        long maxLatencyMillis = 5;
+        // How long any single operation may take before it's considered hung.
+        long timeoutSeconds = 30;
+        // How many more tasks may be queued on the executor at the end than before the workload.
+        int leakTolerance = 2;
+        // Seeds the choice of products for each listener.
+        long seed = 42;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected key=value, but got " + arg);
+                }
+                try {
+                    Field field = Options.class.getDeclaredField(pair[0]);
+                    if (field.getType() == int.class) {
+                        field.setInt(options, Integer.parseInt(pair[1]));
+                    } else {
+                        field.setLong(options, Long.parseLong(pair[1]));
+                    }
+                } catch (NoSuchFieldException e) {
+                    throw new IllegalArgumentException("Unknown option " + pair[0]);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return options;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> failures = new SoakHarness(Options.parse(args)).run();
+        if (failures.isEmpty()) {
+            System.out.println("PASSED");
+            System.exit(0);
+        }
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.exit(1);
+    }
+
+    private final Options mOptions;
+    private final FakeBillingBackend mBackend = new FakeBillingBackend();
+    // Delivers the fake Play Store's callbacks late, the way the real one's main thread might.
+    private final LaggyExecutor mPlayStoreThread;
+    // Stands in for the UI thread, where the client calls its listeners back.
+    private final ExecutorService mMainThread = Executors.newSingleThreadExecutor(named("soak-main"));
+    private final BillingConnection mConnection;
+    private final SupportBillingClient mBillingClient;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    // The fake backend never touches the Activity. On the host, this is a stub that's never finishing.
+    private final Activity mActivity = new Activity();
+
+    // The products the user owned before we started.
+    private final List<String> mOwnedProductIds = new ArrayList<>();
+    // Products bought during the run, and products that failed to launch (so were never bought).
+    private final Set<String> mBoughtProductIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> mUnboughtProductIds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger mNextProduct = new AtomicInteger();
+
+    private final Stats mRegisterStats = new Stats("register");
+    private final Stats mLaunchStats = new Stats("launch");
+    private final Stats mPurchaseStats = new Stats("purchase");
+    private final Stats mRestoreStats = new Stats("restore");
+    private final Stats mExecutorLagStats = new Stats("executor lag");
+    private final AtomicLong mUnregistrations = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+    private final AtomicLong mPurchasesFound = new AtomicLong();
+    private final AtomicLong mPurchasesLost = new AtomicLong();
+    private final AtomicInteger mPeakQueuedTasks = new AtomicInteger();
+    // Failures that can't be blamed on the chaos we're injecting. Kept short, as they tend to repeat.
+    private final List<Throwable> mUnexpectedFailures = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong mUnexpectedFailureCount = new AtomicLong();
+
+    private volatile boolean mRunning = true;
+
+    SoakHarness(Options options) {
+        mOptions = options;
+        mPlayStoreThread = new LaggyExecutor(options.maxLatencyMillis);
+        mBackend.setCallbackExecutor(mPlayStoreThread);
+        // Rate limiting is off, as we call far more often than an app would. The circuit breaker stays on.
+        mConnection = new BillingConnection(null, mBackend, false);
+        mExecutor = mConnection.getExecutor();
+        mBillingClient = new SupportBillingClient(null, mBackend.getPublicKey(), mConnection, mMainThread);
+    }
+
+    List<String> run() throws Exception {
+        SupportBillingClient.setLogger(BillingLogger.NO_OP);
+        for (int i = 0; i < mOptions.purchases; i++) {
+            String productId = "product_" + i;
+            mOwnedProductIds.add(productId);
+            mBackend.addPurchase(productId);
+        }
+
+        // Warm up with a clean restore, then see what the executor holds when idle.
+        if (!await(mBillingClient.queryPurchases(mOwnedProductIds), mRestoreStats, System.nanoTime())) {
+            return Collections.singletonList("The first restore never completed");
+        }
+        mRestoreStats.reset();
+        awaitIdle();
+        int baselineQueuedTasks = mExecutor.getQueue().size();
+        long baselineCompletedTasks = mExecutor.getCompletedTaskCount();
+        long billingThreadId = getBillingThreadId();
+        Map<Long, Long> baselineAllocations = getAllocatedBytes();
+        long baselineGcCount = getGcCount();
+        long baselineGcMillis = getGcMillis();
+        System.out.printf(Locale.US, "Soaking for %ds with %d owned purchases, %d listener threads, %d purchase threads%n",
+                mOptions.durationSeconds, mOptions.purchases, mOptions.listenerThreads, mOptions.purchaseThreads);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < mOptions.listenerThreads; i++) {
+            workers.add(worker("soak-listener-" + i, this::churnListeners));
+        }
+        for (int i = 0; i < mOptions.purchaseThreads; i++) {
+            workers.add(worker("soak-purchase-" + i, this::purchase));
+        }
+        workers.add(worker("soak-restore", this::restore));
+        workers.add(worker("soak-probe", this::probeExecutor));
+        if (mOptions.disconnectIntervalMillis > 0) {
+            workers.add(worker("soak-disconnect", this::disconnect));
+        }
+
+        long startNanos = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mOptions.durationSeconds));
+
+        // Measured while the workers are still alive, as a thread's allocations are forgotten once it ends.
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Map<Long, Long> allocations = getAllocatedBytes();
+        long completedTasks = mExecutor.getCompletedTaskCount() - baselineCompletedTasks;
+        long gcCount = getGcCount() - baselineGcCount;
+        long gcMillis = getGcMillis() - baselineGcMillis;
+        mRunning = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        List<String> failures = new ArrayList<>();
+        quiesce(failures);
+        checkEntitlements(failures);
+        awaitIdle();
+        int leakedTasks = mExecutor.getQueue().size() - baselineQueuedTasks;
+
+        System.out.println();
+        System.out.printf(Locale.US, "%-14s %10s %8s %8s %8s %10s %10s %10s %10s%n",
+                "operation", "ops", "ops/s", "errors", "hung", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Stats stats : Arrays.asList(mRegisterStats, mLaunchStats, mPurchaseStats, mRestoreStats, mExecutorLagStats)) {
+            stats.print(seconds);
+        }
+        System.out.println();
+        System.out.printf(Locale.US, "unregistrations: %d, disconnects: %d, purchases found: %d, purchases lost: %d%n",
+                mUnregistrations.get(), mDisconnects.get(), mPurchasesFound.get(), mPurchasesLost.get());
+        System.out.printf(Locale.US, "executor: %.0f tasks/s, peak queue %d, largest pool %d, %d tasks leaked%n",
+                completedTasks / seconds, mPeakQueuedTasks.get(), mExecutor.getLargestPoolSize(), leakedTasks);
+        System.out.printf(Locale.US, "allocation: %.1f MB/s on the billing thread, %.1f MB/s in total. %d GCs, %d ms%n",
+                megabytesPerSecond(allocations, baselineAllocations, Collections.singleton(billingThreadId), seconds),
+                megabytesPerSecond(allocations, baselineAllocations, allocations.keySet(), seconds),
+                gcCount, gcMillis);
+        System.out.println(mBillingClient.getMemoryReport());
+        System.out.println(mBillingClient.getDiagnostics());
+        System.out.println();
+
+        if (mExecutor.getLargestPoolSize() > 1) {
+            failures.add("The billing executor grew to " + mExecutor.getLargestPoolSize() + " threads");
+        }
+        if (leakedTasks > mOptions.leakTolerance) {
+            failures.add(leakedTasks + " more tasks are queued on the billing executor than before the soak");
+        }
+        for (Stats stats : Arrays.asList(mRegisterStats, mLaunchStats, mPurchaseStats, mRestoreStats, mExecutorLagStats)) {
+            if (stats.mTimeouts.get() > 0) {
+                failures.add(stats.mTimeouts.get() + " " + stats.mName + " calls never completed");
+            }
+        }
+        if (mUnexpectedFailureCount.get() > 0) {
+            failures.add(mUnexpectedFailureCount.get() + " calls failed unexpectedly, starting with " + mUnexpectedFailures.get(0));
+            for (Throwable throwable : mUnexpectedFailures) {
+                throwable.printStackTrace(System.out);
+            }
+        }
+
+        mBillingClient.shutdown();
+        mConnection.shutdown();
+        mPlayStoreThread.shutdown();
+        mMainThread.shutdownNow();
+        return failures;
+    }
+
+    // Registers a listener for a few products, waits for the restore, then unregisters it.
+    private void churnListeners() throws InterruptedException {
+        Random random = new Random(mOptions.seed + Thread.currentThread().getId());
+        while (mRunning) {
+            List<String> productIds = new ArrayList<>(mOptions.productsPerListener);
+            for (int i = 0; i < mOptions.productsPerListener; i++) {
+                productIds.add(mOwnedProductIds.get(random.nextInt(mOwnedProductIds.size())));
+            }
+            SupportBillingClient.PurchaseListener listener = new SupportBillingClient.PurchaseListener() {
+                @Override
+                public void onPurchaseFound(Purchase purchase) {
+                    mPurchasesFound.incrementAndGet();
+                }
+
+                @Override
+                public void onPurchaseLost(String productId) {
+                    mPurchasesLost.incrementAndGet();
+                }
+            };
+            try {
+                await(mBillingClient.registerPurchaseListener(productIds, listener), mRegisterStats, System.nanoTime());
+                Thread.sleep(random.nextInt(5));
+            } finally {
+                mBillingClient.unregisterPurchaseListener(listener);
+                mUnregistrations.incrementAndGet();
+            }
+        }
+    }
+
+    // Buys a new product, and follows it until it's been acknowledged.
+    private void purchase() throws InterruptedException {
+        while (mRunning) {
+            String productId = "soak_" + mNextProduct.getAndIncrement();
+            long startNanos = System.nanoTime();
+            PurchaseSession session = mBillingClient.startPurchase(mActivity, productId, ProductType.INAPP);
+            if (!await(session.getLaunchResult(), mLaunchStats, startNanos)) {
+                continue;
+            }
+            if (!session.getLaunchResult().isSuccessful()) {
+                mUnboughtProductIds.add(productId);
+                continue;
+            }
+            mBoughtProductIds.add(productId);
+            await(session.getPurchase(), mPurchaseStats, startNanos);
+        }
+    }
+
+    // Restores every purchase the user owned before we started.
+    private void restore() throws InterruptedException {
+        while (mRunning) {
+            await(mBillingClient.queryPurchases(mOwnedProductIds), mRestoreStats, System.nanoTime());
+            Thread.sleep(mOptions.restoreIntervalMillis);
+        }
+    }
+
+    // Drops the connection every so often.
+    private void disconnect() throws InterruptedException {
+        while (mRunning) {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(2 * mOptions.disconnectIntervalMillis + 1));
+            mBackend.disconnect();
+            mDisconnects.incrementAndGet();
+        }
+    }
+
+    // Measures how long a task waits for the billing executor. Everything the client does is
+    // serialized on that one thread, so if this grows, something is blocking it.
+    private void probeExecutor() throws InterruptedException {
+        while (mRunning) {
+            mPeakQueuedTasks.accumulateAndGet(mExecutor.getQueue().size(), Math::max);
+            CountDownLatch latch = new CountDownLatch(1);
+            long startNanos = System.nanoTime();
+            mExecutor.execute(() -> {
+                mExecutorLagStats.record(System.nanoTime() - startNanos);
+                latch.countDown();
+            });
+            if (!latch.await(mOptions.timeoutSeconds, TimeUnit.SECONDS)) {
+                mExecutorLagStats.mTimeouts.incrementAndGet();
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // Lets the client catch up without chaos: any acknowledgements it still owes are made, and
+    // what it knows is refreshed. The circuit breaker may still be open, so this retries.
+    private void quiesce(List<String> failures) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(mOptions.timeoutSeconds);
+        while (System.nanoTime() < deadlineNanos) {
+            Task<BillingResult> task = mBillingClient.refreshEntitlements();
+            if (await(task, null, System.nanoTime()) && task.isSuccessful()) {
+                return;
+            }
+            Thread.sleep(500);
+        }
+        failures.add("The client didn't settle within " + mOptions.timeoutSeconds + "s of the soak ending");
+    }
+
+    // Everything bought should be owned, and nothing else.
+    private void checkEntitlements(List<String> failures) throws InterruptedException {
+        List<String> productIds = new ArrayList<>(mOwnedProductIds);
+        productIds.addAll(mBoughtProductIds);
+        productIds.addAll(mUnboughtProductIds);
+        Task<BillingResult> task = mBillingClient.queryPurchases(productIds);
+        if (!await(task, null, System.nanoTime()) || !task.isSuccessful()) {
+            failures.add("Unable to restore purchases after the soak");
+            return;
+        }
+
+        int missing = 0;
+        for (String productId : mOwnedProductIds) {
+            missing += mBillingClient.isEntitled(productId) ? 0 : 1;
+        }
+        for (String productId : mBoughtProductIds) {
+            missing += mBillingClient.isEntitled(productId) ? 0 : 1;
+        }
+        int unexpected = 0;
+        for (String productId : mUnboughtProductIds) {
+            unexpected += mBillingClient.isEntitled(productId) ? 1 : 0;
+        }
+        if (missing > 0) {
+            failures.add(missing + " owned products aren't entitled");
+        }
+        if (unexpected > 0) {
+            failures.add(unexpected + " products that were never bought are entitled");
+        }
+    }
+
+    // Waits for the billing executor, and the threads it calls back on, to run what's queued now.
+    private void awaitIdle() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        mExecutor.execute(latch::countDown);
+        latch.await(mOptions.timeoutSeconds, TimeUnit.SECONDS);
+        Thread.sleep(2 * mOptions.maxLatencyMillis + 100);
+        CountDownLatch mainLatch = new CountDownLatch(1);
+        mMainThread.execute(mainLatch::countDown);
+        mainLatch.await(mOptions.timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    // Waits for a task, and files how long it took (or how it failed) under stats, if given.
+    // Returns false if it didn't complete in time.
+    private boolean await(Task<?> task, @Nullable Stats stats, long startNanos) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicLong endNanos = new AtomicLong();
+        task.addOnCompleteListener(Runnable::run, t -> {
+            endNanos.set(System.nanoTime());
+            latch.countDown();
+        });
+        if (!latch.await(mOptions.timeoutSeconds, TimeUnit.SECONDS)) {
+            if (stats != null) {
+                stats.mTimeouts.incrementAndGet();
+            }
+            return false;
+        }
+
+        if (task.isSuccessful()) {
+            if (stats != null) {
+                stats.record(endNanos.get() - startNanos);
+            }
+            return true;
+        }
+        if (stats != null) {
+            stats.mErrors.incrementAndGet();
+        }
+        onFailure(task.getException());
+        return true;
+    }
+
+    // Failures from the Play Store, or from the circuit breaker protecting us from it, are part
+    // of the soak. Anything else is a bug.
+    private void onFailure(Throwable throwable) {
+        Throwable cause = throwable;
+        while (cause instanceof ExecutionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ApiException) {
+            return;
+        }
+        if (mUnexpectedFailureCount.getAndIncrement() < 5) {
+            mUnexpectedFailures.add(throwable);
+        }
+    }
+
+    private long getBillingThreadId() throws InterruptedException {
+        AtomicLong threadId = new AtomicLong();
+        CountDownLatch latch = new CountDownLatch(1);
+        mExecutor.execute(() -> {
+            threadId.set(Thread.currentThread().getId());
+            latch.countDown();
+        });
+        latch.await();
+        return threadId.get();
+    }
+
+    // Bytes allocated so far by each live thread, keyed by thread ID. Empty if the JVM can't tell us.
+    private static Map<Long, Long> getAllocatedBytes() {
+        Map<Long, Long> allocations = new HashMap<>();
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return allocations;
+        }
+        long[] threadIds = threadMXBean.getAllThreadIds();
+        long[] bytes = ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadIds);
+        for (int i = 0; i < threadIds.length; i++) {
+            if (bytes[i] >= 0) {
+                allocations.put(threadIds[i], bytes[i]);
+            }
+        }
+        return allocations;
+    }
+
+    private static double megabytesPerSecond(Map<Long, Long> allocations, Map<Long, Long> baseline, Set<Long> threadIds, double seconds) {
+        long bytes = 0;
+        for (long threadId : threadIds) {
+            Long allocated = allocations.get(threadId);
+            Long before = baseline.get(threadId);
+            if (allocated != null) {
+                bytes += allocated - (before != null ? before : 0);
+            }
+        }
+        return bytes / seconds / (1024 * 1024);
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private Thread worker(String name, Loop loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        thread.setUncaughtExceptionHandler((t, e) -> {
+            mUnexpectedFailureCount.incrementAndGet();
+            mUnexpectedFailures.add(e);
+        });
+        return thread;
+    }
+
+    private static ThreadFactory named(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private interface Loop {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Runs commands on a thread of its own, each after a random delay. Like a busy main thread,
+     * commands still run in the order they were given.
+     */
+    private static final class LaggyExecutor implements Executor {
+        private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(named("soak-play-store"));
+        private final long mMaxLatencyNanos;
+        // When the last command is due, so that later commands aren't run ahead of it.
+        private long mLastDueNanos;
+
+        LaggyExecutor(long maxLatencyMillis) {
+            mMaxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            long nowNanos = System.nanoTime();
+            long dueNanos;
+            synchronized (this) {
+                dueNanos = Math.max(mLastDueNanos, nowNanos + ThreadLocalRandom.current().nextLong(mMaxLatencyNanos + 1));
+                mLastDueNanos = dueNanos;
+            }
+            mExecutor.schedule(command, dueNanos - nowNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /** The latencies and failures of one kind of operation. */
+    private static final class Stats {
+        final String mName;
+        final AtomicInteger mErrors = new AtomicInteger();
+        final AtomicInteger mTimeouts = new AtomicInteger();
+        private long[] mLatencyNanos = new long[1024];
+        private int mCount;
+
+        Stats(String name) {
+            mName = name;
+        }
+
+        synchronized void record(long latencyNanos) {
+            if (mCount == mLatencyNanos.length) {
+                mLatencyNanos = Arrays.copyOf(mLatencyNanos, mCount * 2);
+            }
+            mLatencyNanos[mCount++] = latencyNanos;
+        }
+
+        synchronized void reset() {
+            mCount = 0;
+            mErrors.set(0);
+            mTimeouts.set(0);
+        }
+
+        synchronized void print(double seconds) {
+            long[] sorted = Arrays.copyOf(mLatencyNanos, mCount);
+            Arrays.sort(sorted);
+            int ops = mCount + mErrors.get();
+            System.out.printf(Locale.US, "%-14s %10d %8.1f %8d %8d %10.2f %10.2f %10.2f %10.2f%n",
+                    mName, ops, ops / seconds, mErrors.get(), mTimeouts.get(),
+                    percentileMillis(sorted, 0.50), percentileMillis(sorted, 0.90),
+                    percentileMillis(sorted, 0.99), percentileMillis(sorted, 1.0));
+        }
+
+        private static double percentileMillis(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+    }
+}
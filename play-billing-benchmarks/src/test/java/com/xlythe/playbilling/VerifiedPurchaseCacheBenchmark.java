@@ -0,0 +1,54 @@
+package com.xlythe.playbilling;
+
+import com.android.vending.billing.util.Security;
+import com.xlythe.playbilling.benchmarks.Fixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of re-verifying a purchase we've seen before, with and without the memo.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VerifiedPurchaseCacheBenchmark {
+    private static final String PURCHASE_TOKEN = "token";
+
+    private VerifiedPurchaseCache mCache;
+    private String mPublicKey;
+    private String mSignedData;
+    private String mSignature;
+
+    @Setup
+    public void setUp() {
+        mPublicKey = Fixtures.publicKey();
+        mSignedData = Fixtures.purchaseJson("premium", 0);
+        mSignature = Fixtures.sign(mSignedData);
+        mCache = new VerifiedPurchaseCache(null, mPublicKey);
+        mCache.putVerified(PURCHASE_TOKEN, mSignedData, mSignature);
+    }
+
+    @Benchmark
+    public boolean memoized() {
+        return mCache.isVerified(PURCHASE_TOKEN, mSignedData, mSignature);
+    }
+
+    @Benchmark
+    public boolean unmemoized() {
+        return Security.verifyPurchase(mPublicKey, mSignedData, mSignature);
+    }
+}
@@ -0,0 +1,72 @@
+package com.xlythe.playbilling.benchmarks;
+
+import com.google.common.io.BaseEncoding;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Payloads shaped like the ones the Play Store hands us. Keys are 2048 bit RSA (the size used by
+ * the Play Console) and purchase JSON matches what queryPurchasesAsync returns.
+ */
+public final class Fixtures {
+    private static final KeyPair KEY_PAIR = newKeyPair();
+
+    private Fixtures() {}
+
+    /** The base64 encoded public key, as copied from the Play Console. */
+    public static String publicKey() {
+        return BaseEncoding.base64().encode(KEY_PAIR.getPublic().getEncoded());
+    }
+
+    /** Purchase JSON for the given product. The seed controls the order id and token. */
+    public static String purchaseJson(String productId, long seed) {
+        Random random = new Random(seed);
+        return String.format(Locale.US,
+                "{\"orderId\":\"GPA.%04d-%04d-%04d-%05d\",\"packageName\":\"com.xlythe.playbilling.demo\",\"productId\":\"%s\","
+                        + "\"purchaseTime\":%d,\"purchaseState\":0,\"purchaseToken\":\"%s\",\"quantity\":1,\"acknowledged\":true}",
+                random.nextInt(10000), random.nextInt(10000), random.nextInt(10000), random.nextInt(100000),
+                productId, 1600000000000L + random.nextInt(Integer.MAX_VALUE), purchaseToken(random));
+    }
+
+    /** The base64 encoded SHA1withRSA signature of the data. */
+    public static String sign(String data) {
+        return sign(data, "SHA1withRSA");
+    }
+
+    /** The base64 encoded signature of the data, using the given algorithm. */
+    public static String sign(String data, String algorithm) {
+        try {
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initSign(KEY_PAIR.getPrivate());
+            signature.update(data.getBytes(StandardCharsets.UTF_8));
+            return BaseEncoding.base64().encode(signature.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Real tokens are ~150 characters of lowercase letters, separated by dots.
+    private static String purchaseToken(Random random) {
+        StringBuilder builder = new StringBuilder(150);
+        for (int i = 0; i < 150; i++) {
+            builder.append(i % 25 == 24 ? '.' : (char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    private static KeyPair newKeyPair() {
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(2048);
+            return keyPairGenerator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
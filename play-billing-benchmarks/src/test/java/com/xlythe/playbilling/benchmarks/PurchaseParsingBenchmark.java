@@ -0,0 +1,58 @@
+package com.xlythe.playbilling.benchmarks;
+
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurchaseParsingBenchmark {
+    private String mJson;
+    private String mSignature;
+
+    @Setup
+    public void setUp() {
+        mJson = Fixtures.purchaseJson("premium", 0);
+        mSignature = Fixtures.sign(mJson);
+    }
+
+    @Benchmark
+    public Purchase parsePurchase() throws JSONException {
+        return new Purchase(mJson, mSignature);
+    }
+
+    /** The history fallback builds a record, then a Purchase out of the record's JSON. */
+    @Benchmark
+    public Purchase parseHistoryRecordAsPurchase() throws JSONException {
+        PurchaseHistoryRecord record = new PurchaseHistoryRecord(mJson, mSignature);
+        return new Purchase(record.getOriginalJson(), record.getSignature());
+    }
+
+    /** The fields onPurchaseFound reads from every purchase. */
+    @Benchmark
+    public void readPurchaseFields(Blackhole blackhole) throws JSONException {
+        Purchase purchase = new Purchase(mJson, mSignature);
+        blackhole.consume(purchase.getProducts());
+        blackhole.consume(purchase.getPurchaseState());
+        blackhole.consume(purchase.getPurchaseToken());
+        blackhole.consume(purchase.isAcknowledged());
+    }
+}
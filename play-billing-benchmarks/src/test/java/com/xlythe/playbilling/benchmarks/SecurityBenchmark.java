@@ -0,0 +1,72 @@
+package com.xlythe.playbilling.benchmarks;
+
+import com.android.vending.billing.util.Security;
+import com.android.vending.billing.util.SignatureVerifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SecurityBenchmark {
+    private String mEncodedPublicKey;
+    private PublicKey mPublicKey;
+    private String mSignedData;
+    private String mSignature;
+    private String mSha256Signature;
+    private SignatureVerifier mSha1Verifier;
+    private SignatureVerifier mSha256Verifier;
+
+    @Setup
+    public void setUp() {
+        mEncodedPublicKey = Fixtures.publicKey();
+        mPublicKey = Security.generatePublicKey(mEncodedPublicKey);
+        mSignedData = Fixtures.purchaseJson("premium", 0);
+        mSignature = Fixtures.sign(mSignedData);
+        mSha256Signature = Fixtures.sign(mSignedData, "SHA256withRSA");
+        mSha1Verifier = new SignatureVerifier(mEncodedPublicKey, SignatureVerifier.Algorithm.SHA1_WITH_RSA);
+        mSha256Verifier = new SignatureVerifier(mEncodedPublicKey, SignatureVerifier.Algorithm.SHA256_WITH_RSA);
+    }
+
+    @Benchmark
+    public PublicKey generatePublicKey() {
+        return Security.generatePublicKey(mEncodedPublicKey);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return Security.verify(mPublicKey, mSignedData, mSignature);
+    }
+
+    /** What Security.verifyPurchase pays per purchase: key decoding plus verification. */
+    @Benchmark
+    public boolean verifyPurchase() {
+        return Security.verifyPurchase(mEncodedPublicKey, mSignedData, mSignature);
+    }
+
+    /** What SupportBillingClient pays per purchase: the key is decoded once, and the data is streamed. */
+    @Benchmark
+    public SignatureVerifier.Result verifierSha1() {
+        return mSha1Verifier.verify(mSignedData, mSignature);
+    }
+
+    @Benchmark
+    public SignatureVerifier.Result verifierSha256() {
+        return mSha256Verifier.verify(mSignedData, mSha256Signature);
+    }
+}
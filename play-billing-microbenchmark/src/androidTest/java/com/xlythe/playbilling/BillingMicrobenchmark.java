@@ -0,0 +1,73 @@
+package com.xlythe.playbilling;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.billingclient.api.Purchase;
+import com.android.vending.billing.util.Security;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.PublicKey;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The per-purchase work the library does while restoring purchases, measured on device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BillingMicrobenchmark {
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private String mEncodedPublicKey;
+    private String mSignedData;
+    private String mSignature;
+
+    @Before
+    public void setUp() {
+        FakeBillingBackend backend = new FakeBillingBackend();
+        Purchase purchase = backend.addPurchase("premium");
+        mEncodedPublicKey = backend.getPublicKey();
+        mSignedData = purchase.getOriginalJson();
+        mSignature = purchase.getSignature();
+    }
+
+    @Test
+    public void generatePublicKey() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Security.generatePublicKey(mEncodedPublicKey);
+        }
+    }
+
+    @Test
+    public void verify() {
+        PublicKey publicKey = Security.generatePublicKey(mEncodedPublicKey);
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            assertTrue(Security.verify(publicKey, mSignedData, mSignature));
+        }
+    }
+
+    @Test
+    public void verifyPurchase() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            assertTrue(Security.verifyPurchase(mEncodedPublicKey, mSignedData, mSignature));
+        }
+    }
+
+    @Test
+    public void parsePurchase() throws JSONException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new Purchase(mSignedData, mSignature);
+        }
+    }
+}
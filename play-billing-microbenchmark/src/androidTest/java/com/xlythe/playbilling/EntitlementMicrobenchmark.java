@@ -0,0 +1,92 @@
+package com.xlythe.playbilling;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Time to first entitlement inside the library: from creating a client to the first
+ * {@link SupportBillingClient.PurchaseListener#onPurchaseFound(Purchase)}, against a
+ * {@link FakeBillingBackend} so that it runs on an offline emulator.
+ */
+@RunWith(Parameterized.class)
+public class EntitlementMicrobenchmark {
+    @Parameterized.Parameters(name = "purchaseCount={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {{1}, {10}, {100}, {1000}});
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mPurchaseCount;
+    private final List<String> mProductIds = new ArrayList<>();
+    private FakeBillingBackend mBackend;
+
+    public EntitlementMicrobenchmark(int purchaseCount) {
+        mPurchaseCount = purchaseCount;
+    }
+
+    @Before
+    public void setUp() {
+        mBackend = new FakeBillingBackend();
+        for (int i = 0; i < mPurchaseCount; i++) {
+            String productId = "product_" + i;
+            mProductIds.add(productId);
+            mBackend.addPurchase(productId);
+        }
+    }
+
+    // The fake backend never touches the Activity, and a real one can't be created off the main thread.
+    private SupportBillingClient newBillingClient() {
+        return new SupportBillingClient(null, mBackend.getPublicKey(), mBackend, Runnable::run);
+    }
+
+    @Test
+    public void timeToFirstEntitlement() throws InterruptedException {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            CountDownLatch entitled = new CountDownLatch(1);
+            SupportBillingClient billingClient = newBillingClient();
+            billingClient.registerPurchaseListener(mProductIds, new SupportBillingClient.PurchaseListener() {
+                @Override
+                public void onPurchaseFound(Purchase purchase) {
+                    entitled.countDown();
+                }
+            });
+            entitled.await();
+
+            state.pauseTiming();
+            billingClient.shutdown();
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void restore() throws InterruptedException {
+        SupportBillingClient billingClient = newBillingClient();
+        try {
+            BenchmarkState state = mBenchmarkRule.getState();
+            while (state.keepRunning()) {
+                CountDownLatch restored = new CountDownLatch(1);
+                billingClient.queryPurchases(mProductIds).addOnCompleteListener(Runnable::run, task -> restored.countDown());
+                restored.await();
+            }
+        } finally {
+            billingClient.shutdown();
+        }
+    }
+}
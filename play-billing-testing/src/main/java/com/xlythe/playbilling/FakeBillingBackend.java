@@ -0,0 +1,365 @@
+package com.xlythe.playbilling;
+
+import android.app.Activity;
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient.BillingResponseCode;
+import com.android.billingclient.api.BillingClient.ProductType;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.google.common.io.BaseEncoding;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * An in-memory {@link BillingBackend} that behaves like a Play Store with a single signed-in user.
+ * Purchases are signed with a key pair generated on construction, so they pass verification when
+ * the client is created with {@link #getPublicKey()}.
+ *
+ * This is intended for benchmarks, tests and offline demos, which is why it lives in the
+ * play-billing-testing module rather than the library itself. Never ship it as your backend.
+ */
+public class FakeBillingBackend implements BillingBackend, BillingBackend.Factory {
+    private static final String PACKAGE_NAME = "com.xlythe.playbilling.fake";
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    private static final int PURCHASE_STATE_PURCHASED = 0;
+    private static final int PURCHASE_STATE_PENDING = 4;
+
+    private final KeyPair mKeyPair;
+    private final String mPublicKey;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    // Purchases owned by the fake user, keyed by product ID.
+    private final Map<String, FakePurchase> mPurchases = new LinkedHashMap<>();
+
+    // Where callbacks are delivered. The real BillingClient uses the main thread.
+    private volatile Executor mCallbackExecutor = Runnable::run;
+    // The response code returned when connecting.
+    private volatile int mConnectionResponseCode = BillingResponseCode.OK;
+    // The response code returned by queries.
+    private volatile int mQueryResponseCode = BillingResponseCode.OK;
+    // The response code delivered once the user leaves the purchase dialog.
+    private volatile int mPurchaseFlowResponseCode = BillingResponseCode.OK;
+    // If false, the Play Store's on-device cache is empty (as on a fresh install) and purchases are only in the history.
+    private volatile boolean mPurchasesCached = true;
+
+    @Nullable private volatile BillingClientStateListener mStateListener;
+    @Nullable private volatile PurchasesUpdatedListener mPurchasesUpdatedListener;
+    private volatile boolean mConnected;
+
+    public FakeBillingBackend() {
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(2048);
+            mKeyPair = keyPairGenerator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        mPublicKey = BaseEncoding.base64().encode(mKeyPair.getPublic().getEncoded());
+    }
+
+    /** The base64-encoded public key that purchases from this backend are signed with. */
+    public String getPublicKey() {
+        return mPublicKey;
+    }
+
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    public void setConnectionResponseCode(@BillingResponseCode int responseCode) {
+        mConnectionResponseCode = responseCode;
+    }
+
+    public void setQueryResponseCode(@BillingResponseCode int responseCode) {
+        mQueryResponseCode = responseCode;
+    }
+
+    public void setPurchaseFlowResponseCode(@BillingResponseCode int responseCode) {
+        mPurchaseFlowResponseCode = responseCode;
+    }
+
+    /**
+     * When false, queryPurchasesAsync returns nothing, as if the app was just installed, and
+     * purchases can only be found in the purchase history.
+     */
+    public void setPurchasesCached(boolean cached) {
+        mPurchasesCached = cached;
+    }
+
+    /** Grants the user an acknowledged, in app purchase of the given product. */
+    public Purchase addPurchase(String productId) {
+        return addPurchase(productId, ProductType.INAPP, Purchase.PurchaseState.PURCHASED, true);
+    }
+
+    /** Grants the user a purchase of the given product. */
+    public synchronized Purchase addPurchase(String productId, @ProductType String productType, int purchaseState, boolean acknowledged) {
+        FakePurchase purchase = new FakePurchase(productId, productType, newPurchaseToken(), System.currentTimeMillis(), purchaseState, acknowledged);
+        mPurchases.put(productId, purchase);
+        return purchase.toPurchase();
+    }
+
+    /** Removes a purchase, as if it had been refunded. */
+    public synchronized void removePurchase(String productId) {
+        mPurchases.remove(productId);
+    }
+
+    public synchronized void clearPurchases() {
+        mPurchases.clear();
+    }
+
+    /** Simulates the Play Store dropping our connection. */
+    public void disconnect() {
+        BillingClientStateListener listener = mStateListener;
+        mConnected = false;
+        if (listener != null) {
+            mCallbackExecutor.execute(listener::onBillingServiceDisconnected);
+        }
+    }
+
+    @Override
+    public BillingBackend create(Context context, PurchasesUpdatedListener purchasesUpdatedListener) {
+        mPurchasesUpdatedListener = purchasesUpdatedListener;
+        return this;
+    }
+
+    @Override
+    public void startConnection(BillingClientStateListener listener) {
+        mStateListener = listener;
+        BillingResult billingResult = newBillingResult(mConnectionResponseCode);
+        mConnected = billingResult.getResponseCode() == BillingResponseCode.OK;
+        mCallbackExecutor.execute(() -> listener.onBillingSetupFinished(billingResult));
+    }
+
+    @Override
+    public void endConnection() {
+        mConnected = false;
+        mStateListener = null;
+    }
+
+    @Override
+    public void queryPurchasesAsync(@ProductType String productType, PurchasesResponseListener listener) {
+        BillingResult billingResult = newQueryResult();
+        List<Purchase> purchases = new ArrayList<>();
+        if (billingResult.getResponseCode() == BillingResponseCode.OK && mPurchasesCached) {
+            for (FakePurchase purchase : snapshot()) {
+                if (purchase.productType.equals(productType)) {
+                    purchases.add(purchase.toPurchase());
+                }
+            }
+        }
+        mCallbackExecutor.execute(() -> listener.onQueryPurchasesResponse(billingResult, purchases));
+    }
+
+    @Override
+    public void queryPurchaseHistoryAsync(@ProductType String productType, PurchaseHistoryResponseListener listener) {
+        BillingResult billingResult = newQueryResult();
+        List<PurchaseHistoryRecord> records = new ArrayList<>();
+        if (billingResult.getResponseCode() == BillingResponseCode.OK) {
+            for (FakePurchase purchase : snapshot()) {
+                if (purchase.productType.equals(productType)) {
+                    records.add(purchase.toPurchaseHistoryRecord());
+                }
+            }
+        }
+        mCallbackExecutor.execute(() -> listener.onPurchaseHistoryResponse(billingResult, records));
+    }
+
+    @Override
+    public void queryProductDetailsAsync(List<String> productIds, @ProductType String productType, ProductDetailsResponseListener listener) {
+        BillingResult billingResult = newQueryResult();
+        List<ProductDetails> productDetailsList = new ArrayList<>();
+        if (billingResult.getResponseCode() == BillingResponseCode.OK) {
+            for (String productId : productIds) {
+                productDetailsList.add(newProductDetails(productId, productType));
+            }
+        }
+        mCallbackExecutor.execute(() -> listener.onProductDetailsResponse(billingResult, productDetailsList));
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(Activity activity, ProductDetails productDetails, BillingFlowParams params) {
+        if (!mConnected) {
+            return newBillingResult(BillingResponseCode.SERVICE_DISCONNECTED);
+        }
+
+        int responseCode = mPurchaseFlowResponseCode;
+        mCallbackExecutor.execute(() -> {
+            PurchasesUpdatedListener purchasesUpdatedListener = mPurchasesUpdatedListener;
+            if (purchasesUpdatedListener == null) {
+                return;
+            }
+
+            if (responseCode != BillingResponseCode.OK) {
+                purchasesUpdatedListener.onPurchasesUpdated(newBillingResult(responseCode), null);
+                return;
+            }
+
+            Purchase purchase = addPurchase(productDetails.getProductId(), productDetails.getProductType(), Purchase.PurchaseState.PURCHASED, false);
+            purchasesUpdatedListener.onPurchasesUpdated(newBillingResult(BillingResponseCode.OK), Collections.singletonList(purchase));
+        });
+        return newBillingResult(BillingResponseCode.OK);
+    }
+
+    @Override
+    public void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+        int responseCode = mConnected ? BillingResponseCode.OK : BillingResponseCode.SERVICE_DISCONNECTED;
+        if (responseCode == BillingResponseCode.OK) {
+            synchronized (this) {
+                for (Map.Entry<String, FakePurchase> entry : mPurchases.entrySet()) {
+                    FakePurchase purchase = entry.getValue();
+                    if (purchase.purchaseToken.equals(purchaseToken)) {
+                        entry.setValue(new FakePurchase(purchase.productId, purchase.productType, purchase.purchaseToken, purchase.purchaseTime, purchase.purchaseState, true));
+                        break;
+                    }
+                }
+            }
+        }
+        mCallbackExecutor.execute(() -> listener.onAcknowledgePurchaseResponse(newBillingResult(responseCode)));
+    }
+
+    private synchronized List<FakePurchase> snapshot() {
+        return new ArrayList<>(mPurchases.values());
+    }
+
+    private BillingResult newQueryResult() {
+        return newBillingResult(mConnected ? mQueryResponseCode : BillingResponseCode.SERVICE_DISCONNECTED);
+    }
+
+    private static BillingResult newBillingResult(int responseCode) {
+        return BillingResult.newBuilder().setResponseCode(responseCode).build();
+    }
+
+    private String newPurchaseToken() {
+        byte[] bytes = new byte[96];
+        mRandom.nextBytes(bytes);
+        return BaseEncoding.base64Url().omitPadding().encode(bytes);
+    }
+
+    private String sign(String json) {
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(mKeyPair.getPrivate());
+            signature.update(json.getBytes(StandardCharsets.UTF_8));
+            return BaseEncoding.base64().encode(signature.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ProductDetails does not have a public constructor, so we build it from the JSON the Play Store would have sent.
+    private static ProductDetails newProductDetails(String productId, @ProductType String productType) {
+        try {
+            JSONObject json = new JSONObject()
+                    .put("productId", productId)
+                    .put("type", productType)
+                    .put("title", productId + " (" + PACKAGE_NAME + ")")
+                    .put("name", productId)
+                    .put("description", "A fake product")
+                    .put("skuDetailsToken", "fake-" + productId);
+            if (ProductType.SUBS.equals(productType)) {
+                // A monthly base plan that renews until cancelled.
+                json.put("subscriptionOfferDetails", new JSONArray().put(new JSONObject()
+                        .put("basePlanId", "monthly")
+                        .put("offerIdToken", "fake-offer-" + productId)
+                        .put("offerTags", new JSONArray())
+                        .put("pricingPhases", new JSONArray().put(new JSONObject()
+                                .put("priceAmountMicros", 4990000)
+                                .put("priceCurrencyCode", "USD")
+                                .put("formattedPrice", "$4.99")
+                                .put("billingPeriod", "P1M")
+                                .put("recurrenceMode", ProductDetails.RecurrenceMode.INFINITE_RECURRING)
+                                .put("billingCycleCount", 0)))));
+            } else {
+                json.put("oneTimePurchaseOfferDetails", new JSONObject()
+                        .put("priceAmountMicros", 990000)
+                        .put("priceCurrencyCode", "USD")
+                        .put("formattedPrice", "$0.99"));
+            }
+            Constructor<ProductDetails> constructor = ProductDetails.class.getDeclaredConstructor(String.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(json.toString());
+        } catch (ReflectiveOperationException | JSONException e) {
+            throw new IllegalStateException("Unable to create fake ProductDetails for " + productId, e);
+        }
+    }
+
+    private final class FakePurchase {
+        final String productId;
+        final String productType;
+        final String purchaseToken;
+        final long purchaseTime;
+        final int purchaseState;
+        final boolean acknowledged;
+        final String originalJson;
+        final String signature;
+
+        FakePurchase(String productId, String productType, String purchaseToken, long purchaseTime, int purchaseState, boolean acknowledged) {
+            this.productId = productId;
+            this.productType = productType;
+            this.purchaseToken = purchaseToken;
+            this.purchaseTime = purchaseTime;
+            this.purchaseState = purchaseState;
+            this.acknowledged = acknowledged;
+            try {
+                this.originalJson = new JSONObject()
+                        .put("orderId", "GPA.0000-0000-0000-" + Math.abs(purchaseToken.hashCode() % 100000))
+                        .put("packageName", PACKAGE_NAME)
+                        .put("productId", productId)
+                        .put("purchaseTime", purchaseTime)
+                        .put("purchaseState", purchaseState == Purchase.PurchaseState.PENDING ? PURCHASE_STATE_PENDING : PURCHASE_STATE_PURCHASED)
+                        .put("purchaseToken", purchaseToken)
+                        .put("quantity", 1)
+                        .put("autoRenewing", ProductType.SUBS.equals(productType))
+                        .put("acknowledged", acknowledged)
+                        .toString();
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+            this.signature = sign(originalJson);
+        }
+
+        Purchase toPurchase() {
+            try {
+                return new Purchase(originalJson, signature);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        PurchaseHistoryRecord toPurchaseHistoryRecord() {
+            try {
+                return new PurchaseHistoryRecord(originalJson, signature);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
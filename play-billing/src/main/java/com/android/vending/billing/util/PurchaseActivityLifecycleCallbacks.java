@@ -8,14 +8,22 @@ import com.android.billingclient.api.BillingClient.ProductType;
 import com.android.billingclient.api.BillingResult;
 import com.android.billingclient.api.Purchase;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.xlythe.playbilling.SupportBillingClient;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+/**
+ * Ties billing to an Activity's lifecycle. All instances in the process share one restore, so
+ * moving between several Activities doesn't ask the Play Store again each time. Purchases are
+ * re-checked when an Activity resumes, once the last restore is older than
+ * {@link #setRefreshInterval(long, TimeUnit)}.
+ */
 public class PurchaseActivityLifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
     // The Google Play Store API key this app is tied to.
     private final String mApiKey;
@@ -26,75 +34,56 @@ public class PurchaseActivityLifecycleCallbacks implements Application.ActivityL
     // Our client's registered callback where we report billing events.
     @Nullable private BillingListener mBillingListener;
 
-    // The Activity we're tied to. Null if no activity is currently visible.
+    // The Activity we're tied to. Null until registered.
     @Nullable private Activity mActivity;
 
-    // Allows us to talk to the Play Store app on the device, and query it for in app purchase and subscription
-    // information.
-    private SupportBillingClient mBillingClient;
-    // A callback from the BillingClient informing us of purchase events.
-    private final SupportBillingClient.PurchaseListener mPurchaseListener = new SupportBillingClient.PurchaseListener() {
-        @Override
-        public void onPurchaseFound(Purchase purchase) {
-            if (mBillingListener == null) {
-                return;
-            }
-
-            for (String productId : purchase.getProducts()) {
-                mBillingListener.onPurchaseFound(productId, purchase);
-            }
-        }
-
-        @Override
-        public void onPurchaseLost(String productId) {
-            if (mBillingListener == null) {
-                return;
-            }
-
-            mBillingListener.onPurchaseLost(productId);
-        }
-    };
+    // Shared with every other Activity using the same API key.
+    @Nullable private PurchaseStateCoordinator mCoordinator;
 
     public PurchaseActivityLifecycleCallbacks(String apiKey, List<String> productIds) {
         mApiKey = apiKey;
         mProductIds = new ArrayList<>(productIds);
     }
 
+    /**
+     * How long restored purchases are trusted before they're checked again. Defaults to 5 minutes.
+     */
+    public static void setRefreshInterval(long duration, TimeUnit unit) {
+        PurchaseStateCoordinator.setRefreshInterval(duration, unit);
+    }
+
+    /**
+     * Starts reporting billing events to the listener until the Activity is destroyed. Anything we
+     * already know is reported right away.
+     */
     public void register(Activity activity, BillingListener billingListener) {
         mActivity = activity;
         mBillingListener = billingListener;
         activity.getApplication().registerActivityLifecycleCallbacks(this);
-        onActivityCreated(mActivity, null);
+        onActivityCreated(activity, null);
     }
 
     @Override
     public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
-        if (mActivity != activity) {
+        if (mActivity != activity || mBillingListener == null || mCoordinator != null) {
             return;
         }
 
-        mBillingClient = SupportBillingClient.getInstance(activity, mApiKey);
-        mBillingClient.registerPurchaseListener(mProductIds, mPurchaseListener);
-        mBillingClient.verifyBillingSupport()
-                .addOnSuccessListener(billingResult -> {
-                    if (mBillingListener == null) {
-                        return;
-                    }
-                    mBillingListener.onBillingAvailable();
-                })
-                .addOnFailureListener(billingResult -> {
-                    if (mBillingListener == null) {
-                        return;
-                    }
-                    mBillingListener.onBillingUnavailable();
-                });
+        mCoordinator = PurchaseStateCoordinator.get(activity.getApplication(), mApiKey);
+        mCoordinator.attach(activity, mProductIds, mBillingListener);
     }
 
     @Override
     public void onActivityStarted(@NonNull Activity activity) {}
 
     @Override
-    public void onActivityResumed(@NonNull Activity activity) {}
+    public void onActivityResumed(@NonNull Activity activity) {
+        if (mActivity != activity || mCoordinator == null) {
+            return;
+        }
+
+        mCoordinator.onResumed(activity);
+    }
 
     @Override
     public void onActivityPaused(@NonNull Activity activity) {}
@@ -111,16 +100,21 @@ public class PurchaseActivityLifecycleCallbacks implements Application.ActivityL
             return;
         }
 
-        mBillingClient.unregisterPurchaseListener(mPurchaseListener);
-        mActivity.getApplication().unregisterActivityLifecycleCallbacks(this);
+        if (mCoordinator != null) {
+            mCoordinator.detach(activity);
+        }
+        activity.getApplication().unregisterActivityLifecycleCallbacks(this);
     }
 
     public Task<BillingResult> purchaseItem(String productId) {
-        return mBillingClient.purchaseItem(productId);
+        return purchaseItem(productId, ProductType.INAPP);
     }
 
     public Task<BillingResult> purchaseItem(String productId, @ProductType String productType) {
-        return mBillingClient.purchaseItem(productId, productType);
+        if (mActivity == null || mCoordinator == null) {
+            return Tasks.forException(new IllegalStateException("Unable to purchase an item before register() has been called."));
+        }
+        return mCoordinator.getBillingClient().purchaseItem(mActivity, productId, productType);
     }
 
     /**
@@ -128,7 +122,10 @@ public class PurchaseActivityLifecycleCallbacks implements Application.ActivityL
      * Uses {@link BillingListener#onPurchaseFound(String, Purchase)} to report purchases.
      */
     public Task<BillingResult> queryPurchases() {
-        return mBillingClient.queryPurchases(mProductIds);
+        if (mCoordinator == null) {
+            return Tasks.forException(new IllegalStateException("Unable to query purchases before register() has been called."));
+        }
+        return mCoordinator.getBillingClient().queryPurchases(mProductIds);
     }
 
     public interface BillingListener {
@@ -0,0 +1,225 @@
+package com.android.vending.billing.util;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.collection.ArrayMap;
+
+import com.android.billingclient.api.Purchase;
+import com.xlythe.playbilling.SupportBillingClient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One per API key, shared by every {@link PurchaseActivityLifecycleCallbacks} in the process. It
+ * restores purchases once, hands the result to each Activity as it's created, and only asks the
+ * Play Store again when an Activity resumes after the result has gone stale.
+ *
+ * The SupportBillingClient is looked up again on every use rather than held, as
+ * {@link SupportBillingClient#setBillingBackendFactory} replaces the application's clients.
+ */
+@MainThread
+class PurchaseStateCoordinator {
+    private static final Map<String, PurchaseStateCoordinator> sCoordinators = new HashMap<>();
+
+    // How long a restore is trusted before an Activity resuming triggers another one.
+    private static long sRefreshIntervalMillis = TimeUnit.MINUTES.toMillis(5);
+
+    static PurchaseStateCoordinator get(Application application, String apiKey) {
+        PurchaseStateCoordinator coordinator = sCoordinators.get(apiKey);
+        if (coordinator == null) {
+            coordinator = new PurchaseStateCoordinator(application, apiKey);
+            sCoordinators.put(apiKey, coordinator);
+        }
+        return coordinator;
+    }
+
+    static void setRefreshInterval(long duration, TimeUnit unit) {
+        sRefreshIntervalMillis = unit.toMillis(duration);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Application mApplication;
+    private final String mApiKey;
+    // The client our listener is registered with, if any. Replaced clients are unusable.
+    @Nullable private SupportBillingClient mBillingClient;
+
+    // The Activities we're reporting to, and their listeners.
+    private final Map<Activity, PurchaseActivityLifecycleCallbacks.BillingListener> mBillingListeners = new ArrayMap<>();
+    // Every product ID any Activity has asked about.
+    private final Set<String> mProductIds = new LinkedHashSet<>();
+
+    // The result of the last restore, shared by every Activity.
+    private final Map<String, Purchase> mPurchases = new LinkedHashMap<>();
+    private final Set<String> mLostProductIds = new LinkedHashSet<>();
+    @Nullable private Boolean mBillingAvailable;
+
+    // When we last asked the Play Store, in elapsed realtime. 0 if we never have.
+    private long mLastRefreshMillis;
+    // True while our listener is registered with the SupportBillingClient.
+    private boolean mRegistered;
+
+    // A callback from the BillingClient informing us of purchase events.
+    private final SupportBillingClient.PurchaseListener mPurchaseListener = new SupportBillingClient.PurchaseListener() {
+        @Override
+        public void onPurchaseFound(Purchase purchase) {
+            for (String productId : purchase.getProducts()) {
+                mPurchases.put(productId, purchase);
+                mLostProductIds.remove(productId);
+                for (PurchaseActivityLifecycleCallbacks.BillingListener l : listeners()) {
+                    l.onPurchaseFound(productId, purchase);
+                }
+            }
+        }
+
+        @Override
+        public void onPurchaseLost(String productId) {
+            mPurchases.remove(productId);
+            mLostProductIds.add(productId);
+            for (PurchaseActivityLifecycleCallbacks.BillingListener l : listeners()) {
+                l.onPurchaseLost(productId);
+            }
+        }
+    };
+
+    private PurchaseStateCoordinator(Application application, String apiKey) {
+        mApplication = application;
+        mApiKey = apiKey;
+    }
+
+    /**
+     * Returns the application's current client. If it's been replaced since we registered, our
+     * listener moves to the new one, and what we knew from the old one is forgotten.
+     */
+    SupportBillingClient getBillingClient() {
+        SupportBillingClient billingClient = SupportBillingClient.getInstance(mApplication, mApiKey);
+        if (billingClient != mBillingClient) {
+            mBillingClient = billingClient;
+            mPurchases.clear();
+            mLostProductIds.clear();
+            mBillingAvailable = null;
+            if (mRegistered) {
+                register();
+            }
+        }
+        return billingClient;
+    }
+
+    void attach(Activity activity, List<String> productIds, PurchaseActivityLifecycleCallbacks.BillingListener billingListener) {
+        mBillingListeners.put(activity, billingListener);
+        boolean hasNewProducts = mProductIds.addAll(productIds);
+        getBillingClient();
+
+        if (!mRegistered) {
+            // Registering replays what the client already knows to every listener, so that's all
+            // the new Activity needs.
+            mRegistered = true;
+            register();
+            return;
+        }
+
+        // Report what we already know. This is posted, as we're called from within onCreate and the
+        // Activity likely hasn't finished setting itself up yet.
+        mHandler.post(() -> dispatchCachedState(activity));
+        if (hasNewProducts || isStale()) {
+            refresh();
+        }
+    }
+
+    /** Asks the Play Store again if the Activity is resuming after the last restore has gone stale. */
+    void onResumed(Activity activity) {
+        if (mBillingListeners.containsKey(activity) && isStale()) {
+            refresh();
+        }
+    }
+
+    void detach(Activity activity) {
+        if (mBillingListeners.remove(activity) == null) {
+            return;
+        }
+
+        // If this is a rotation, the new Activity is about to attach. Stay registered for it.
+        if (activity.isChangingConfigurations()) {
+            return;
+        }
+
+        if (mBillingListeners.isEmpty() && mRegistered) {
+            // Let the client disconnect. We keep our cached state for the next Activity.
+            mRegistered = false;
+            if (mBillingClient != null) {
+                mBillingClient.unregisterPurchaseListener(mPurchaseListener);
+            }
+        }
+    }
+
+    void refresh() {
+        mLastRefreshMillis = SystemClock.elapsedRealtime();
+        getBillingClient().queryPurchases(new ArrayList<>(mProductIds));
+        verifyBillingSupport();
+    }
+
+    // Registers our listener with mBillingClient, which restores purchases.
+    private void register() {
+        mLastRefreshMillis = SystemClock.elapsedRealtime();
+        mBillingClient.registerPurchaseListener(new ArrayList<>(mProductIds), mPurchaseListener);
+        verifyBillingSupport();
+    }
+
+    private boolean isStale() {
+        return mLastRefreshMillis == 0 || SystemClock.elapsedRealtime() - mLastRefreshMillis > sRefreshIntervalMillis;
+    }
+
+    private void verifyBillingSupport() {
+        getBillingClient().verifyBillingSupport()
+                .addOnSuccessListener(billingResult -> {
+                    mBillingAvailable = true;
+                    for (PurchaseActivityLifecycleCallbacks.BillingListener l : listeners()) {
+                        l.onBillingAvailable();
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    mBillingAvailable = false;
+                    for (PurchaseActivityLifecycleCallbacks.BillingListener l : listeners()) {
+                        l.onBillingUnavailable();
+                    }
+                });
+    }
+
+    private void dispatchCachedState(Activity activity) {
+        PurchaseActivityLifecycleCallbacks.BillingListener billingListener = mBillingListeners.get(activity);
+        if (billingListener == null) {
+            return;
+        }
+
+        if (mBillingAvailable != null) {
+            if (mBillingAvailable) {
+                billingListener.onBillingAvailable();
+            } else {
+                billingListener.onBillingUnavailable();
+            }
+        }
+        for (Map.Entry<String, Purchase> entry : mPurchases.entrySet()) {
+            billingListener.onPurchaseFound(entry.getKey(), entry.getValue());
+        }
+        for (String productId : mLostProductIds) {
+            billingListener.onPurchaseLost(productId);
+        }
+    }
+
+    // A copy, as listeners may detach while being called.
+    private List<PurchaseActivityLifecycleCallbacks.BillingListener> listeners() {
+        return new ArrayList<>(mBillingListeners.values());
+    }
+}
@@ -1,16 +1,14 @@
 package com.android.vending.billing.util;
 
-import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 
 import android.text.TextUtils;
-import android.util.Log;
+
+import com.xlythe.playbilling.BillingLog;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -22,10 +20,7 @@ import android.util.Log;
  * verified.
  */
 public class Security {
-    private static final String TAG = "IABUtil/Security";
-
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
-    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
     /**
      * Verifies that the data was signed with the given signature, and returns
@@ -42,7 +37,7 @@ public class Security {
      */
     public static boolean verifyPurchase(String base64PublicKey, String signedData, String signature) {
         if(TextUtils.isEmpty(signedData) || TextUtils.isEmpty(base64PublicKey) || TextUtils.isEmpty(signature)) {
-            Log.e(TAG, "Purchase verification failed: missing data.");
+            BillingLog.e("Purchase verification failed: missing data.");
             return false;
         }
 
@@ -69,11 +64,11 @@ public class Security {
             throw new RuntimeException(e);
         }
         catch(InvalidKeySpecException e) {
-            Log.e(TAG, "Invalid key specification.");
+            BillingLog.e("Invalid key specification.");
             throw new IllegalArgumentException(e);
         }
         catch(Base64.DecoderException e) {
-            Log.e(TAG, "Base64 decoding failed.");
+            BillingLog.e("Base64 decoding failed.");
             throw new IllegalArgumentException(e);
         }
     }
@@ -81,6 +76,7 @@ public class Security {
     /**
      * Verifies that the signature from the server matches the computed
      * signature on the data. Returns true if the data is correctly signed.
+     * Use a {@link SignatureVerifier} to find out why verification failed.
      *
      * @param publicKey
      *            public key associated with the developer account
@@ -91,29 +87,10 @@ public class Security {
      * @return true if the data and signature match
      */
     public static boolean verify(PublicKey publicKey, String signedData, String signature) {
-        Signature sig;
-        try {
-            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
-            sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
-            if(!sig.verify(Base64.decode(signature))) {
-                Log.e(TAG, "Signature verification failed.");
-                return false;
-            }
-            return true;
-        }
-        catch(NoSuchAlgorithmException e) {
-            Log.e(TAG, "NoSuchAlgorithmException.");
-        }
-        catch(InvalidKeyException e) {
-            Log.e(TAG, "Invalid key specification.");
-        }
-        catch(SignatureException e) {
-            Log.e(TAG, "Signature exception.");
-        }
-        catch(Base64.DecoderException e) {
-            Log.e(TAG, "Base64 decoding failed.");
+        SignatureVerifier.Result result = new SignatureVerifier(publicKey, SignatureVerifier.Algorithm.SHA1_WITH_RSA).verify(signedData, signature);
+        if (!result.isVerified()) {
+            BillingLog.e(() -> "Signature verification failed: " + result + ".");
         }
-        return false;
+        return result.isVerified();
     }
 }
@@ -0,0 +1,225 @@
+package com.android.vending.billing.util;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Verifies signed data against a single public key. The key is decoded once, when the verifier is
+ * created, and the signed data is fed to the {@link Signature} as UTF-8 in small chunks straight
+ * from the String, without copying it into one large byte array first.
+ *
+ * Unlike {@link Security#verifyPurchase(String, String, String)}, the {@link Result} says why
+ * verification failed. Instances are thread safe.
+ */
+public final class SignatureVerifier {
+    /** The signature algorithms a verifier can check. */
+    public enum Algorithm {
+        /** What the Play Store signs purchases with. */
+        SHA1_WITH_RSA("SHA1withRSA"),
+        /** For receipts that were re-signed by your own server. */
+        SHA256_WITH_RSA("SHA256withRSA");
+
+        private final String mName;
+
+        Algorithm(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    /** Why verification passed or failed. */
+    public enum Reason {
+        VERIFIED,
+        /** The signed data, the signature or the key was empty. */
+        MISSING_DATA,
+        /** The public key could not be decoded. */
+        INVALID_KEY,
+        /** The signature was not valid base64. */
+        MALFORMED_SIGNATURE,
+        /** The signature does not match the data. It may have been tampered with. */
+        SIGNATURE_MISMATCH,
+        /** The device does not support the algorithm. */
+        ALGORITHM_UNAVAILABLE,
+        /** The signature could not be checked. */
+        SIGNATURE_EXCEPTION
+    }
+
+    /** The outcome of a verification. */
+    public static final class Result {
+        private static final Result VERIFIED = new Result(Reason.VERIFIED, null);
+
+        private final Reason mReason;
+        @Nullable private final Exception mCause;
+
+        private Result(Reason reason, @Nullable Exception cause) {
+            mReason = reason;
+            mCause = cause;
+        }
+
+        public boolean isVerified() {
+            return mReason == Reason.VERIFIED;
+        }
+
+        public Reason getReason() {
+            return mReason;
+        }
+
+        /** The exception behind the failure, if there was one. */
+        @Nullable
+        public Exception getCause() {
+            return mCause;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mCause == null ? mReason.name() : mReason.name() + " (" + mCause + ")";
+        }
+    }
+
+    // Signed data is encoded into a buffer of this size, one chunk at a time.
+    private static final int CHUNK_SIZE = 512;
+
+    private final Algorithm mAlgorithm;
+    @Nullable private final PublicKey mPublicKey;
+    @Nullable private final Result mKeyFailure;
+
+    // Signature and encoding buffers are reused, but aren't safe to share between threads.
+    private final ThreadLocal<Signature> mSignature = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> mBuffer = new ThreadLocal<>();
+
+    public SignatureVerifier(String base64PublicKey) {
+        this(base64PublicKey, Algorithm.SHA1_WITH_RSA);
+    }
+
+    public SignatureVerifier(String base64PublicKey, Algorithm algorithm) {
+        mAlgorithm = algorithm;
+        PublicKey publicKey = null;
+        Result keyFailure = null;
+        if (TextUtils.isEmpty(base64PublicKey)) {
+            keyFailure = new Result(Reason.MISSING_DATA, null);
+        } else {
+            try {
+                publicKey = Security.generatePublicKey(base64PublicKey);
+            } catch (IllegalArgumentException e) {
+                keyFailure = new Result(Reason.INVALID_KEY, e);
+            }
+        }
+        mPublicKey = publicKey;
+        mKeyFailure = keyFailure;
+    }
+
+    public SignatureVerifier(PublicKey publicKey, Algorithm algorithm) {
+        mAlgorithm = algorithm;
+        mPublicKey = publicKey;
+        mKeyFailure = null;
+    }
+
+    public Algorithm getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /**
+     * Verifies that the signature from the server matches the computed signature on the data.
+     *
+     * @param signedData
+     *            signed data from server
+     * @param signature
+     *            base64-encoded server signature
+     */
+    public Result verify(String signedData, String signature) {
+        if (mKeyFailure != null) {
+            return mKeyFailure;
+        }
+        if (TextUtils.isEmpty(signedData) || TextUtils.isEmpty(signature)) {
+            return new Result(Reason.MISSING_DATA, null);
+        }
+
+        byte[] decodedSignature;
+        try {
+            decodedSignature = Base64.decode(signature);
+        } catch (Base64.DecoderException e) {
+            return new Result(Reason.MALFORMED_SIGNATURE, e);
+        }
+
+        try {
+            Signature sig = getSignature();
+            sig.initVerify(mPublicKey);
+            update(sig, signedData);
+            return sig.verify(decodedSignature) ? Result.VERIFIED : new Result(Reason.SIGNATURE_MISMATCH, null);
+        } catch (NoSuchAlgorithmException e) {
+            return new Result(Reason.ALGORITHM_UNAVAILABLE, e);
+        } catch (InvalidKeyException e) {
+            return new Result(Reason.INVALID_KEY, e);
+        } catch (SignatureException e) {
+            return new Result(Reason.SIGNATURE_EXCEPTION, e);
+        }
+    }
+
+    private Signature getSignature() throws NoSuchAlgorithmException {
+        Signature sig = mSignature.get();
+        if (sig == null) {
+            sig = Signature.getInstance(mAlgorithm.getName());
+            mSignature.set(sig);
+        }
+        return sig;
+    }
+
+    /** Feeds the UTF-8 encoding of the data into the signature, a chunk at a time. */
+    private void update(Signature sig, String data) throws SignatureException {
+        byte[] buffer = mBuffer.get();
+        if (buffer == null) {
+            buffer = new byte[CHUNK_SIZE];
+            mBuffer.set(buffer);
+        }
+        update(sig, data, buffer);
+    }
+
+    static void update(Signature sig, String data, byte[] buffer) throws SignatureException {
+        // Leave room for the longest UTF-8 sequence, so a character never straddles two chunks.
+        int limit = buffer.length - 4;
+        int position = 0;
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(data.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, data.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate. String.getBytes replaces these with '?', so we do too.
+                buffer[position++] = (byte) '?';
+            } else {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+
+            if (position >= limit) {
+                sig.update(buffer, 0, position);
+                position = 0;
+            }
+        }
+        if (position > 0) {
+            sig.update(buffer, 0, position);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.xlythe.playbilling;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClient.ProductType;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import java.util.List;
+
+/**
+ * The subset of {@link BillingClient} that {@link SupportBillingClient} talks to. By default, this
+ * forwards to Google's BillingClient, but an alternative (such as the FakeBillingBackend in the
+ * play-billing-testing module) can be swapped in with
+ * {@link SupportBillingClient#setBillingBackendFactory(Factory)} to run the library without the
+ * Play Store.
+ *
+ * Arguments are passed as plain values rather than Google's params objects, as those do not
+ * expose their contents to anyone but the real BillingClient.
+ */
+public interface BillingBackend {
+    /**
+     * Creates a backend. Purchases made through {@link #launchBillingFlow(Activity, ProductDetails, BillingFlowParams)}
+     * must be reported to the given listener.
+     */
+    interface Factory {
+        BillingBackend create(Context context, PurchasesUpdatedListener purchasesUpdatedListener);
+    }
+
+    void startConnection(BillingClientStateListener listener);
+
+    void endConnection();
+
+    void queryPurchasesAsync(@ProductType String productType, PurchasesResponseListener listener);
+
+    void queryPurchaseHistoryAsync(@ProductType String productType, PurchaseHistoryResponseListener listener);
+
+    void queryProductDetailsAsync(List<String> productIds, @ProductType String productType, ProductDetailsResponseListener listener);
+
+    /**
+     * Launches the purchase dialog. The {@link ProductDetails} are the same ones that were used to
+     * build the params, and are passed along for backends that cannot read the params.
+     */
+    BillingResult launchBillingFlow(Activity activity, ProductDetails productDetails, BillingFlowParams params);
+
+    void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener);
+}
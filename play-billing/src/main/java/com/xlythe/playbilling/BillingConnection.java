@@ -0,0 +1,364 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.billingclient.api.BillingClient.BillingResponseCode;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.Status;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connection to the Play Store, and the background thread everything runs on. One connection
+ * is shared by every {@link SupportBillingClient} in the process, whatever their API keys, so N
+ * keys don't mean N connections. Purchase updates are handed to every client, and each one
+ * verifies them against its own key.
+ */
+final class BillingConnection {
+    // How long to stay connected after the last call, if nobody is listening for purchases.
+    private static final long DISCONNECT_DELAY_SECONDS = 15;
+    // The value of mTaskStartNanos while no task is running.
+    private static final long IDLE = Long.MIN_VALUE;
+
+    /** A client of the connection. Called on the connection's executor. */
+    interface Client {
+        /** Called with the outcome of every purchase dialog, including ones the user backed out of. */
+        @WorkerThread
+        void onPurchasesUpdated(BillingResult billingResult, List<Purchase> purchases);
+
+        /** Returns true if the client still needs the connection, such as to hear about new purchases. */
+        boolean isInUse();
+
+        /** Returns true if the purchase is signed with the client's API key. */
+        @WorkerThread
+        boolean verifies(PurchaseRecord purchase);
+
+        /** Called after the connection is (re)established, so work that failed without it can be retried. */
+        @WorkerThread
+        void onConnected();
+    }
+
+    private enum ServiceConnectionState {
+        DISCONNECTED, CONNECTING, CONNECTED
+    }
+
+    /** The kinds of call made to the Play Store, each with its own rate limit. */
+    enum Operation {
+        CONNECT(5, TimeUnit.SECONDS.toNanos(2)),
+        QUERY_PURCHASES(10, TimeUnit.SECONDS.toNanos(1)),
+        // Goes over the network, so it's held to a slower rate.
+        QUERY_PURCHASE_HISTORY(3, TimeUnit.SECONDS.toNanos(10)),
+        QUERY_PRODUCT_DETAILS(10, TimeUnit.SECONDS.toNanos(1));
+
+        final int burst;
+        final long refillIntervalNanos;
+
+        Operation(int burst, long refillIntervalNanos) {
+            this.burst = burst;
+            this.refillIntervalNanos = refillIntervalNanos;
+        }
+    }
+
+    /** Thrown instead of calling the Play Store, when it's failing or being called too often. */
+    static final class ThrottledException extends ApiException {
+        ThrottledException(String message) {
+            super(new Status(BillingResponseCode.SERVICE_UNAVAILABLE, message));
+        }
+    }
+
+    // An executor to run tasks on the background. It keeps track of itself, for diagnostics. Tasks
+    // submitted after shutdown are dropped; clients fail whatever their callers are waiting on.
+    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadPoolExecutor.DiscardPolicy()) {
+        // Every task pays for these, so they only bump a counter and write a timestamp. Asking the
+        // executor itself would take its locks.
+        @Override
+        protected <V> RunnableScheduledFuture<V> decorateTask(Runnable runnable, RunnableScheduledFuture<V> task) {
+            mSubmittedTasks.incrementAndGet();
+            return task;
+        }
+
+        @Override
+        protected <V> RunnableScheduledFuture<V> decorateTask(Callable<V> callable, RunnableScheduledFuture<V> task) {
+            mSubmittedTasks.incrementAndGet();
+            return task;
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable runnable) {
+            mTaskStartNanos = System.nanoTime();
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            mTaskStartNanos = IDLE;
+            mCompletedTasks++;
+        }
+    };
+    // When the task that's running on mExecutor started, in System.nanoTime, or IDLE if none is.
+    private volatile long mTaskStartNanos = IDLE;
+    // How many tasks have been handed to mExecutor, including ones still waiting on a delay.
+    private final AtomicLong mSubmittedTasks = new AtomicLong();
+    // How many tasks mExecutor has run (or skipped, if they were cancelled). Only written from mExecutor.
+    private volatile long mCompletedTasks;
+    // The backend used to talk to the Play Store. Created on mExecutor, so only touch it from there.
+    @Nullable private volatile BillingBackend mBackend;
+    // The clients sharing this connection.
+    private final CopyOnWriteArraySet<Client> mClients = new CopyOnWriteArraySet<>();
+
+    // The state of our connection to the Play Store.
+    private volatile ServiceConnectionState mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+    // A task that's scheduled in the future to disconnect from the Play Store when we're no longer interested.
+    private final Runnable mDisconnectTask = this::attemptToDisconnect;
+    // How many paywalls are holding the connection open.
+    private final AtomicInteger mPins = new AtomicInteger();
+
+    // Limits how often each kind of call is made. Empty if rate limiting is off.
+    private final Map<Operation, RateLimiter> mRateLimiters = new EnumMap<>(Operation.class);
+    // Fails calls fast while the Play Store is unavailable.
+    private final CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+
+    BillingConnection(@Nullable Context context, BillingBackend.Factory backendFactory) {
+        this(context, backendFactory, true);
+    }
+
+    BillingConnection(@Nullable Context context, BillingBackend.Factory backendFactory, boolean rateLimited) {
+        if (rateLimited) {
+            for (Operation operation : Operation.values()) {
+                mRateLimiters.put(operation, new RateLimiter(operation.burst, operation.refillIntervalNanos));
+            }
+        }
+
+        PurchasesUpdatedListener purchasesUpdatedListener = (billingResult, purchases) -> {
+            if (billingResult.getResponseCode() != BillingResponseCode.OK) {
+                BillingLog.w(() -> "Attempted to purchase an item, but received error: " + SupportBillingClient.toString(billingResult));
+            }
+
+            List<Purchase> updatedPurchases = purchases != null ? purchases : Collections.emptyList();
+            for (Client client : mClients) {
+                mExecutor.execute(() -> client.onPurchasesUpdated(billingResult, updatedPurchases));
+            }
+        };
+
+        // Building the BillingClient is slow enough to be noticed in Activity.onCreate, so we do it
+        // in the background. The executor is single threaded, so everything submitted after this
+        // waits for it.
+        mExecutor.execute(() -> mBackend = backendFactory.create(context, purchasesUpdatedListener));
+    }
+
+    ScheduledThreadPoolExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    void addClient(Client client) {
+        mClients.add(client);
+    }
+
+    void removeClient(Client client) {
+        mClients.remove(client);
+    }
+
+    /**
+     * Returns true if a client other than the given one verifies the purchase. Every client sees
+     * every purchase, so this is how a client tells another tenant's purchase apart from a forgery.
+     */
+    @WorkerThread
+    boolean isVerifiedByAnotherClient(Client client, PurchaseRecord purchase) {
+        for (Client other : mClients) {
+            if (other != client && other.verifies(purchase)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @WorkerThread
+    BillingBackend getBackend() {
+        return Objects.requireNonNull(mBackend);
+    }
+
+    /**
+     * Returns the backend if we're connected right now, or null if not. For launching a purchase
+     * dialog straight from the UI thread, without waiting on the executor.
+     */
+    @Nullable
+    BillingBackend getBackendIfConnected() {
+        return mServiceConnectionState == ServiceConnectionState.CONNECTED ? mBackend : null;
+    }
+
+    /** DISCONNECTED, CONNECTING or CONNECTED. */
+    String getStateName() {
+        return mServiceConnectionState.name();
+    }
+
+    CircuitBreaker.State getCircuitBreakerState() {
+        return mCircuitBreaker.getState();
+    }
+
+    /** How many paywalls are holding the connection open. */
+    int getPins() {
+        return mPins.get();
+    }
+
+    /**
+     * How many tasks are waiting on the executor, including ones scheduled for later. Counted
+     * rather than read from the queue, so it doesn't take the queue's lock. Tasks dropped after
+     * shutdown are still counted.
+     */
+    int getQueuedTasks() {
+        long completedTasks = mCompletedTasks;
+        long queuedTasks = mSubmittedTasks.get() - completedTasks - (mTaskStartNanos == IDLE ? 0 : 1);
+        return (int) Math.max(0, queuedTasks);
+    }
+
+    /** How many tasks the executor has run. */
+    long getCompletedTasks() {
+        return mCompletedTasks;
+    }
+
+    /** How long the executor has been running its current task, or 0 if it's idle. */
+    long getBusyNanos() {
+        long taskStartNanos = mTaskStartNanos;
+        return taskStartNanos == IDLE ? 0 : Math.max(0, System.nanoTime() - taskStartNanos);
+    }
+
+    /** Keeps the connection open, even if nobody is listening for purchases, until unpinned. */
+    void pin() {
+        mPins.incrementAndGet();
+    }
+
+    void unpin() {
+        mPins.decrementAndGet();
+    }
+
+    /**
+     * Call before asking the Play Store for something. Throws if the call shouldn't be made, either
+     * because the Play Store has been failing or because it's been called too often. Callers keep
+     * serving what they already know in the meantime.
+     */
+    void acquire(Operation operation) throws ThrottledException {
+        // The breaker goes first, so that calls failing fast while it's open don't use up tokens.
+        if (!mCircuitBreaker.allowRequest()) {
+            throw new ThrottledException("The Play Store is unavailable. Trying again in " + mCircuitBreaker.getRemainingOpenMillis() + "ms.");
+        }
+        RateLimiter rateLimiter = mRateLimiters.get(operation);
+        if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+            mCircuitBreaker.cancelRequest();
+            throw new ThrottledException("Too many " + operation + " calls. Try again later.");
+        }
+    }
+
+    /** Call with every result from the Play Store, so the circuit breaker knows how it's doing. */
+    void recordResult(BillingResult billingResult) {
+        mCircuitBreaker.recordResult(billingResult.getResponseCode());
+        if (billingResult.getResponseCode() == BillingResponseCode.SERVICE_DISCONNECTED) {
+            // We missed the disconnect. Reconnect on the next call.
+            mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+        }
+    }
+
+    @WorkerThread
+    BillingResult ensureConnected() throws Exception {
+        // A shortcut! We're already connected, so we can no-op here.
+        if (mServiceConnectionState == ServiceConnectionState.CONNECTED) {
+            // Reset the disconnect timer, since there's user interaction.
+            scheduleDisconnect();
+            return BillingResult.newBuilder().setResponseCode(BillingResponseCode.OK).build();
+        }
+
+        // Darn, not connected yet. We'll have to do this the long way.
+        acquire(Operation.CONNECT);
+        mServiceConnectionState = ServiceConnectionState.CONNECTING;
+
+        SettableFuture<BillingResult> future = SettableFuture.create();
+        getBackend().startConnection(new BillingClientStateListener() {
+            @Override
+            public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
+                recordResult(billingResult);
+                future.set(billingResult);
+            }
+
+            @Override
+            public void onBillingServiceDisconnected() {
+                BillingLog.w("Billing temporarily disconnected");
+                mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+            }
+        });
+
+        // If we failed to connect, throw an exception so the Task will return a failure.
+        // It's not smart enough to know how to read the internals of BillingResult.
+        BillingResult billingResult = future.get();
+        if (Objects.requireNonNull(billingResult).getResponseCode() != BillingResponseCode.OK) {
+            mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+            throw new ApiException(new Status(billingResult.getResponseCode(), "Failed to connect to the Play Store: " + SupportBillingClient.toString(billingResult)));
+        }
+        mServiceConnectionState = ServiceConnectionState.CONNECTED;
+        for (Client client : mClients) {
+            mExecutor.execute(client::onConnected);
+        }
+
+        // If we succeeded in connecting, then we need to start a timer to disconnect in the
+        // future. Otherwise, we'll get trapped in a memory leak.
+        scheduleDisconnect();
+        return billingResult;
+    }
+
+    private void scheduleDisconnect() {
+        mExecutor.remove(mDisconnectTask);
+        mExecutor.schedule(mDisconnectTask, DISCONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void attemptToDisconnect() {
+        // Already disconnected! Nothing more to do.
+        if (mServiceConnectionState == ServiceConnectionState.DISCONNECTED) {
+            return;
+        }
+
+        // Unable to disconnect until every client is done with the connection.
+        if (mPins.get() > 0) {
+            scheduleDisconnect();
+            return;
+        }
+        for (Client client : mClients) {
+            if (client.isInUse()) {
+                scheduleDisconnect();
+                return;
+            }
+        }
+
+        // Goodbye.
+        getBackend().endConnection();
+        mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+    }
+
+    // Tears down the connection and the background thread. The connection is unusable afterwards.
+    void shutdown() {
+        mClients.clear();
+        mExecutor.shutdownNow();
+        BillingBackend backend = mBackend;
+        if (backend != null) {
+            backend.endConnection();
+        }
+        mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+    }
+}
@@ -0,0 +1,188 @@
+package com.xlythe.playbilling;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link SupportBillingClient} is up to, for when billing is slow or stuck in the field.
+ * Taken without locks or waiting on the background thread, so it's cheap enough to poll from a
+ * watchdog.
+ *
+ * Each value is the latest one as of when it was read. The values are read one at a time while
+ * the client keeps running, though, so they aren't guaranteed to agree with each other. For
+ * example, a purchase may be counted both in flight and as an entitlement.
+ */
+public final class BillingDiagnostics {
+    /** The part of a client's state that's owned by its background thread. */
+    static final class ClientState {
+        final int purchasesInFlight;
+        final int acknowledgementsInFlight;
+        final int journaledOperations;
+        final int pendingPurchases;
+        final int trackedSubscriptions;
+        final boolean queryInFlight;
+        // When purchases were last read from the Play Store, in System.nanoTime. Null if they never were.
+        @Nullable final Long lastQueryNanos;
+        final long memoryUsedBytes;
+        final long memoryBudgetBytes;
+
+        ClientState(int purchasesInFlight, int acknowledgementsInFlight, int journaledOperations, int pendingPurchases,
+                    int trackedSubscriptions, boolean queryInFlight, @Nullable Long lastQueryNanos,
+                    long memoryUsedBytes, long memoryBudgetBytes) {
+            this.purchasesInFlight = purchasesInFlight;
+            this.acknowledgementsInFlight = acknowledgementsInFlight;
+            this.journaledOperations = journaledOperations;
+            this.pendingPurchases = pendingPurchases;
+            this.trackedSubscriptions = trackedSubscriptions;
+            this.queryInFlight = queryInFlight;
+            this.lastQueryNanos = lastQueryNanos;
+            this.memoryUsedBytes = memoryUsedBytes;
+            this.memoryBudgetBytes = memoryBudgetBytes;
+        }
+    }
+
+    private final String mConnectionState;
+    private final String mCircuitBreakerState;
+    private final int mOpenPaywalls;
+    private final long mBusyMillis;
+    private final int mQueuedTasks;
+    private final long mCompletedTasks;
+    private final int mListenerCount;
+    private final ClientState mClientState;
+    private final long mLastQueryAgeMillis;
+    private final EntitlementSnapshot mEntitlements;
+
+    BillingDiagnostics(BillingConnection connection, ClientState clientState, int listenerCount, EntitlementSnapshot entitlements) {
+        this.mConnectionState = connection.getStateName();
+        this.mCircuitBreakerState = connection.getCircuitBreakerState().name();
+        this.mOpenPaywalls = connection.getPins();
+        this.mBusyMillis = TimeUnit.NANOSECONDS.toMillis(connection.getBusyNanos());
+        this.mQueuedTasks = connection.getQueuedTasks();
+        this.mCompletedTasks = connection.getCompletedTasks();
+        this.mListenerCount = listenerCount;
+        this.mClientState = clientState;
+        this.mLastQueryAgeMillis = clientState.lastQueryNanos == null
+                ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - clientState.lastQueryNanos);
+        this.mEntitlements = entitlements;
+    }
+
+    /** DISCONNECTED, CONNECTING or CONNECTED. */
+    public String getConnectionState() {
+        return mConnectionState;
+    }
+
+    /** CLOSED while the Play Store is healthy. OPEN while calls to it are failing fast, and HALF_OPEN while one is let through to test it. */
+    public String getCircuitBreakerState() {
+        return mCircuitBreakerState;
+    }
+
+    /** How many {@link PaywallSession}s are holding the connection open. */
+    public int getOpenPaywalls() {
+        return mOpenPaywalls;
+    }
+
+    /**
+     * How long the background thread has been running its current task, or 0 if it's idle. Every
+     * call to the Play Store waits behind that task, so if this keeps growing, something's stuck.
+     */
+    public long getBusyMillis() {
+        return mBusyMillis;
+    }
+
+    /** How many tasks are waiting on the background thread. */
+    public int getQueuedTasks() {
+        return mQueuedTasks;
+    }
+
+    /** How many tasks the background thread has run. */
+    public long getCompletedTasks() {
+        return mCompletedTasks;
+    }
+
+    public int getListenerCount() {
+        return mListenerCount;
+    }
+
+    /** Purchase dialogs that were launched, and that we haven't heard back from. */
+    public int getPurchasesInFlight() {
+        return mClientState.purchasesInFlight;
+    }
+
+    /** Acknowledgements that were sent, and that the Play Store hasn't answered. */
+    public int getAcknowledgementsInFlight() {
+        return mClientState.acknowledgementsInFlight;
+    }
+
+    /** Acknowledgements and restores that are owed to the Play Store, waiting to be retried. */
+    public int getJournaledOperations() {
+        return mClientState.journaledOperations;
+    }
+
+    /** Purchases that are waiting on payment. */
+    public int getPendingPurchases() {
+        return mClientState.pendingPurchases;
+    }
+
+    /** Subscriptions we're expecting to renew. */
+    public int getTrackedSubscriptions() {
+        return mClientState.trackedSubscriptions;
+    }
+
+    public boolean isQueryInFlight() {
+        return mClientState.queryInFlight;
+    }
+
+    /** How long ago purchases were last read from the Play Store, in millis, or -1 if they never were. */
+    public long getLastQueryAgeMillis() {
+        return mLastQueryAgeMillis;
+    }
+
+    /** How much heap the client's caches and purchases hold, in bytes. */
+    public long getMemoryUsedBytes() {
+        return mClientState.memoryUsedBytes;
+    }
+
+    public long getMemoryBudgetBytes() {
+        return mClientState.memoryBudgetBytes;
+    }
+
+    /** The entitlements as of the last completed query. */
+    public EntitlementSnapshot getEntitlements() {
+        return mEntitlements;
+    }
+
+    /** Writes a line per field, for dumpsys or a bug report. */
+    public void dump(PrintWriter writer) {
+        dump("", writer);
+    }
+
+    /** Like {@link #dump(PrintWriter)}, but starts every line with the prefix. */
+    public void dump(String prefix, PrintWriter writer) {
+        String indent = prefix + "  ";
+        writer.println(indent + "connection: " + mConnectionState + ", circuit breaker " + mCircuitBreakerState + ", " + mOpenPaywalls + " open paywalls");
+        writer.println(indent + "executor: " + (mBusyMillis > 0 ? "busy for " + mBusyMillis + "ms" : "idle") + ", " + mQueuedTasks + " queued, " + mCompletedTasks + " completed");
+        writer.println(indent + "listeners: " + mListenerCount);
+        writer.println(indent + "in flight: " + mClientState.purchasesInFlight + " purchases, " + mClientState.acknowledgementsInFlight + " acknowledgements"
+                + (mClientState.queryInFlight ? ", a query" : ""));
+        writer.println(indent + "owed: " + mClientState.journaledOperations + " journaled operations, " + mClientState.pendingPurchases + " pending purchases");
+        writer.println(indent + "subscriptions tracked: " + mClientState.trackedSubscriptions);
+        writer.println(indent + "last query: " + (mLastQueryAgeMillis < 0 ? "never" : mLastQueryAgeMillis + "ms ago"));
+        writer.println(indent + "memory: " + mClientState.memoryUsedBytes + " of " + mClientState.memoryBudgetBytes + " bytes");
+        writer.println(indent + "entitlements: " + mEntitlements);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter writer = new PrintWriter(stringWriter);
+        writer.println("BillingDiagnostics");
+        dump(writer);
+        writer.flush();
+        return stringWriter.toString().trim();
+    }
+}
@@ -0,0 +1,82 @@
+package com.xlythe.playbilling;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RestrictTo;
+
+/**
+ * The library's own log calls go through here, to whichever {@link BillingLogger} is set. Prefer
+ * the {@link BillingLogger.MessageSupplier} overloads, or check {@link #isLoggable(int)} first, for
+ * any message that has to be built.
+ *
+ * Public only so that the library's other packages can log through it too. Not for apps.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
+public final class BillingLog {
+    private static volatile BillingLogger sLogger = BillingLogger.LOGCAT;
+
+    private BillingLog() {}
+
+    static void setLogger(BillingLogger logger) {
+        sLogger = logger;
+    }
+
+    static boolean isLoggable(int priority) {
+        return sLogger.isLoggable(priority);
+    }
+
+    static void v(String message) {
+        log(Log.VERBOSE, message, null);
+    }
+
+    static void v(BillingLogger.MessageSupplier message) {
+        log(Log.VERBOSE, message, null);
+    }
+
+    static void d(String message) {
+        log(Log.DEBUG, message, null);
+    }
+
+    static void d(BillingLogger.MessageSupplier message) {
+        log(Log.DEBUG, message, null);
+    }
+
+    static void w(String message) {
+        log(Log.WARN, message, null);
+    }
+
+    static void w(String message, @Nullable Throwable throwable) {
+        log(Log.WARN, message, throwable);
+    }
+
+    static void w(BillingLogger.MessageSupplier message) {
+        log(Log.WARN, message, null);
+    }
+
+    static void w(BillingLogger.MessageSupplier message, @Nullable Throwable throwable) {
+        log(Log.WARN, message, throwable);
+    }
+
+    public static void e(String message) {
+        log(Log.ERROR, message, null);
+    }
+
+    public static void e(BillingLogger.MessageSupplier message) {
+        log(Log.ERROR, message, null);
+    }
+
+    private static void log(int priority, String message, @Nullable Throwable throwable) {
+        BillingLogger logger = sLogger;
+        if (logger.isLoggable(priority)) {
+            logger.log(priority, message, throwable);
+        }
+    }
+
+    private static void log(int priority, BillingLogger.MessageSupplier message, @Nullable Throwable throwable) {
+        BillingLogger logger = sLogger;
+        if (logger.isLoggable(priority)) {
+            logger.log(priority, message.get(), throwable);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.xlythe.playbilling;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Where the library's log messages go. Set one with {@link SupportBillingClient#setLogger(BillingLogger)}.
+ *
+ * Messages are only built if {@link #isLoggable(int)} says they'll be used, so a logger that
+ * filters out a level (or {@link #NO_OP}, which filters out everything) costs no garbage strings.
+ * Priorities are the ones in {@link Log}, such as {@link Log#DEBUG}.
+ */
+public interface BillingLogger {
+    /** Builds a log message. Only called if the message is going to be logged. */
+    interface MessageSupplier {
+        String get();
+    }
+
+    /** Logs nothing. Use this in release builds to skip building log messages at all. */
+    BillingLogger NO_OP = new BillingLogger() {
+        @Override
+        public boolean isLoggable(int priority) {
+            return false;
+        }
+
+        @Override
+        public void log(int priority, String message, @Nullable Throwable throwable) {}
+    };
+
+    /**
+     * Logs to logcat under the "PlayBilling" tag, at the levels enabled by {@link Log#isLoggable}.
+     * That's INFO and above unless changed with {@code adb shell setprop log.tag.PlayBilling VERBOSE},
+     * which takes effect within a few seconds. This is the default.
+     */
+    BillingLogger LOGCAT = new LogcatLogger(-1);
+
+    /** Logs everything at or above the given priority to logcat, under the "PlayBilling" tag. */
+    static BillingLogger logcat(int minPriority) {
+        return new LogcatLogger(minPriority);
+    }
+
+    boolean isLoggable(int priority);
+
+    void log(int priority, String message, @Nullable Throwable throwable);
+}
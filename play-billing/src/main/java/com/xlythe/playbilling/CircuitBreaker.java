@@ -0,0 +1,107 @@
+package com.xlythe.playbilling;
+
+import com.android.billingclient.api.BillingClient.BillingResponseCode;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling the Play Store while it's failing. After a few failures in a row the breaker
+ * opens, and calls fail fast instead of waiting on a service that isn't going to answer. Once the
+ * breaker has been open for a while, a single probe is let through. If it succeeds the breaker
+ * closes again, and if it fails the breaker stays open for twice as long. Thread safe.
+ */
+final class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long INITIAL_OPEN_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long MAX_OPEN_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // Written under the lock, but read without it for diagnostics.
+    private volatile State mState = State.CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenNanos = INITIAL_OPEN_NANOS;
+    private long mOpenedAtNanos;
+    private boolean mProbeInFlight;
+
+    /**
+     * Response codes that mean the Play Store can't be reached or is in trouble, rather than that
+     * the request was bad. A network error counts, as retrying straight away won't fix it either.
+     */
+    static boolean isFailure(@BillingResponseCode int responseCode) {
+        switch (responseCode) {
+            case BillingResponseCode.NETWORK_ERROR:
+            case BillingResponseCode.SERVICE_UNAVAILABLE:
+            case BillingResponseCode.SERVICE_DISCONNECTED:
+            case BillingResponseCode.SERVICE_TIMEOUT:
+            case BillingResponseCode.ERROR:
+            case BillingResponseCode.BILLING_UNAVAILABLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Returns true if a call may go ahead. When half open, only the probe may. */
+    synchronized boolean allowRequest() {
+        switch (mState) {
+            case OPEN:
+                if (System.nanoTime() - mOpenedAtNanos < mOpenNanos) {
+                    return false;
+                }
+                mState = State.HALF_OPEN;
+                mProbeInFlight = true;
+                return true;
+            case HALF_OPEN:
+                if (mProbeInFlight) {
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /** Call if a request that was allowed isn't made after all, so that it doesn't hold up the probe. */
+    synchronized void cancelRequest() {
+        mProbeInFlight = false;
+    }
+
+    synchronized void recordResult(@BillingResponseCode int responseCode) {
+        mProbeInFlight = false;
+        if (!isFailure(responseCode)) {
+            mState = State.CLOSED;
+            mConsecutiveFailures = 0;
+            mOpenNanos = INITIAL_OPEN_NANOS;
+            return;
+        }
+
+        if (mState == State.HALF_OPEN) {
+            // The probe failed. Wait longer before the next one.
+            mOpenNanos = Math.min(MAX_OPEN_NANOS, mOpenNanos * 2);
+            open();
+        } else if (++mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    State getState() {
+        return mState;
+    }
+
+    /** How long until a probe will be let through, or 0 if the breaker isn't open. */
+    synchronized long getRemainingOpenMillis() {
+        if (mState != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(mOpenNanos - (System.nanoTime() - mOpenedAtNanos)));
+    }
+
+    private void open() {
+        mState = State.OPEN;
+        mOpenedAtNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,72 @@
+package com.xlythe.playbilling;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A read-only view of the latest {@link EntitlementSnapshot}, with one row per product the user is
+ * entitled to. It isn't exported, but any process in the app can query it, or register a
+ * ContentObserver on {@link #getUri(Context)} to hear when entitlements change.
+ */
+public class EntitlementProvider extends ContentProvider {
+    public static final String COLUMN_PRODUCT_ID = "product_id";
+    public static final String COLUMN_SEQUENCE = "sequence";
+    public static final String COLUMN_TIME_MILLIS = "time_millis";
+
+    private static final String AUTHORITY_SUFFIX = ".playbilling.entitlements";
+    private static final String[] COLUMNS = {COLUMN_PRODUCT_ID, COLUMN_SEQUENCE, COLUMN_TIME_MILLIS};
+
+    /** The Uri that entitlements are published to. */
+    public static Uri getUri(Context context) {
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection, @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        EntitlementSnapshot snapshot = EntitlementStore.read(getContext());
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, snapshot.getProductIds().size());
+        for (String productId : snapshot.getProductIds()) {
+            cursor.addRow(new Object[] {productId, snapshot.getSequence(), snapshot.getTimeMillis()});
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), getUri(getContext()));
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return "vnd.android.cursor.dir/vnd.com.xlythe.playbilling.entitlement";
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Entitlements are read-only");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Entitlements are read-only");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Entitlements are read-only");
+    }
+}
@@ -0,0 +1,100 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+import android.os.Build;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ListenableWorker;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically refreshes the user's entitlements in the background, so that the published
+ * {@link EntitlementSnapshot} stays current even if the app isn't opened. Each run batches
+ * everything into one connection: one-time products, subscriptions, the purchase history, pending
+ * purchases and any acknowledgements we still owe. Runs only while the device is idle and on an
+ * unmetered network. This is opt-in.
+ *
+ * <pre>{@code
+ * EntitlementRefreshWorker.schedule(context, apiKey);
+ * }</pre>
+ */
+public class EntitlementRefreshWorker extends ListenableWorker {
+    // Suffixed with the API key's section, so that each key has a refresh of its own.
+    private static final String WORK_NAME_PREFIX = "com.xlythe.playbilling.EntitlementRefreshWorker.";
+    private static final String KEY_API_KEY = "api_key";
+    // How often to refresh, unless told otherwise.
+    private static final long DEFAULT_REPEAT_INTERVAL_HOURS = 12;
+
+    public EntitlementRefreshWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Refreshes entitlements about twice a day. Replaces any refresh that was already scheduled for
+     * this API key. Refreshes for other keys are unaffected.
+     */
+    public static void schedule(Context context, String apiKey) {
+        schedule(context, apiKey, DEFAULT_REPEAT_INTERVAL_HOURS, TimeUnit.HOURS);
+    }
+
+    /**
+     * Refreshes entitlements at most once per interval. WorkManager doesn't allow intervals
+     * shorter than 15 minutes. Replaces any refresh that was already scheduled for this API key.
+     */
+    public static void schedule(Context context, String apiKey, long repeatInterval, TimeUnit unit) {
+        Constraints.Builder constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            constraints.setRequiresDeviceIdle(true);
+        }
+
+        PeriodicWorkRequest workRequest = new PeriodicWorkRequest.Builder(EntitlementRefreshWorker.class, repeatInterval, unit)
+                .setConstraints(constraints.build())
+                .setInputData(new Data.Builder().putString(KEY_API_KEY, apiKey).build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(getWorkName(apiKey), ExistingPeriodicWorkPolicy.UPDATE, workRequest);
+    }
+
+    /** Stops refreshing entitlements for the API key in the background. */
+    public static void cancel(Context context, String apiKey) {
+        WorkManager.getInstance(context).cancelUniqueWork(getWorkName(apiKey));
+    }
+
+    private static String getWorkName(String apiKey) {
+        return WORK_NAME_PREFIX + EntitlementStore.sectionOf(apiKey);
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<Result> startWork() {
+        SettableFuture<Result> future = SettableFuture.create();
+        String apiKey = getInputData().getString(KEY_API_KEY);
+        if (TextUtils.isEmpty(apiKey)) {
+            BillingLog.w("Unable to refresh entitlements without an API key");
+            future.set(Result.failure());
+            return future;
+        }
+
+        SupportBillingClient.getInstance(getApplicationContext(), apiKey).refreshEntitlements().addOnCompleteListener(Runnable::run, task -> {
+            if (task.isSuccessful()) {
+                future.set(Result.success());
+            } else {
+                BillingLog.w("Unable to refresh entitlements. Trying again later.", task.getException());
+                future.set(Result.retry());
+            }
+        });
+        return future;
+    }
+}
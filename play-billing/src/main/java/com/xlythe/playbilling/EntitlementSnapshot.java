@@ -0,0 +1,84 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The products the user was entitled to at a point in time. Within the app's process, observe
+ * {@link SupportBillingClient#getEntitlements()}. Snapshots are also published by the process that
+ * runs {@link SupportBillingClient}, so that other processes (such as a widget or a sync adapter)
+ * can check entitlements with {@link #get(Context)} without connecting to the Play Store
+ * themselves.
+ */
+public final class EntitlementSnapshot {
+    static final EntitlementSnapshot EMPTY = new EntitlementSnapshot(0, 0, Collections.emptySet());
+
+    private final long mSequence;
+    private final long mTimeMillis;
+    private final Set<String> mProductIds;
+
+    EntitlementSnapshot(long sequence, long timeMillis, Set<String> productIds) {
+        this.mSequence = sequence;
+        this.mTimeMillis = timeMillis;
+        this.mProductIds = Collections.unmodifiableSet(productIds);
+    }
+
+    /**
+     * Returns the most recently published snapshot, or an empty one if nothing has been published
+     * yet. This reads a small file, so avoid calling it on the UI thread. To be told when a new
+     * snapshot is published, observe {@link EntitlementProvider#getUri(Context)}.
+     */
+    @WorkerThread
+    public static EntitlementSnapshot get(Context context) {
+        return EntitlementStore.read(context);
+    }
+
+    /** Increases every time a new snapshot is published. */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /** When the snapshot was published, in wall clock millis. Zero if it never was. */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    public Set<String> getProductIds() {
+        return mProductIds;
+    }
+
+    public boolean isEntitled(String productId) {
+        return mProductIds.contains(productId);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EntitlementSnapshot)) {
+            return false;
+        }
+        EntitlementSnapshot that = (EntitlementSnapshot) o;
+        return mSequence == that.mSequence
+                && mTimeMillis == that.mTimeMillis
+                && mProductIds.equals(that.mProductIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mSequence ^ (mSequence >>> 32)) * 31 + mProductIds.hashCode();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "EntitlementSnapshot{sequence=" + mSequence + ", productIds=" + mProductIds + "}";
+    }
+}
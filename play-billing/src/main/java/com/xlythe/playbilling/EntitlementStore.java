@@ -0,0 +1,122 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+
+import androidx.annotation.WorkerThread;
+import androidx.collection.ArraySet;
+import androidx.core.content.ContextCompat;
+import androidx.core.util.AtomicFile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes the published {@link EntitlementSnapshot}. It's kept in the no-backup
+ * directory, since entitlements belong to whoever is signed into the Play Store on this device,
+ * and written with an {@link AtomicFile} so that readers in other processes never see half of it.
+ *
+ * Each API key has its own section of the file. Readers that don't name a key see the union of
+ * every section.
+ */
+@WorkerThread
+final class EntitlementStore {
+    private static final String FILE_NAME = "com.xlythe.playbilling.entitlements";
+    private static final int VERSION = 2;
+
+    private EntitlementStore() {}
+
+    /** A short, stable name for an API key's section. The key itself is hundreds of characters. */
+    static String sectionOf(String apiKey) {
+        return Integer.toHexString(apiKey.hashCode());
+    }
+
+    /** Returns everything the user is entitled to, under any API key. */
+    static EntitlementSnapshot read(Context context) {
+        Map<String, EntitlementSnapshot> sections = readSections(context);
+        if (sections.size() == 1) {
+            return sections.values().iterator().next();
+        }
+
+        // Every publish bumps one section's sequence, so the sum goes up every time too.
+        long sequence = 0;
+        long timeMillis = 0;
+        Set<String> productIds = new ArraySet<>();
+        for (EntitlementSnapshot snapshot : sections.values()) {
+            sequence += snapshot.getSequence();
+            timeMillis = Math.max(timeMillis, snapshot.getTimeMillis());
+            productIds.addAll(snapshot.getProductIds());
+        }
+        return sections.isEmpty() ? EntitlementSnapshot.EMPTY : new EntitlementSnapshot(sequence, timeMillis, productIds);
+    }
+
+    /** Returns what was last published under the given section. */
+    static EntitlementSnapshot read(Context context, String section) {
+        EntitlementSnapshot snapshot = readSections(context).get(section);
+        return snapshot != null ? snapshot : EntitlementSnapshot.EMPTY;
+    }
+
+    static void write(Context context, String section, EntitlementSnapshot snapshot) throws IOException {
+        Map<String, EntitlementSnapshot> sections = readSections(context);
+        sections.put(section, snapshot);
+
+        AtomicFile file = getFile(context);
+        FileOutputStream out = file.startWrite();
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(VERSION);
+            data.writeInt(sections.size());
+            for (Map.Entry<String, EntitlementSnapshot> entry : sections.entrySet()) {
+                data.writeUTF(entry.getKey());
+                data.writeLong(entry.getValue().getSequence());
+                data.writeLong(entry.getValue().getTimeMillis());
+                data.writeInt(entry.getValue().getProductIds().size());
+                for (String productId : entry.getValue().getProductIds()) {
+                    data.writeUTF(productId);
+                }
+            }
+            data.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            file.failWrite(out);
+            throw e;
+        }
+    }
+
+    private static Map<String, EntitlementSnapshot> readSections(Context context) {
+        Map<String, EntitlementSnapshot> sections = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(getFile(context).openRead())) {
+            if (in.readInt() != VERSION) {
+                return sections;
+            }
+            int sectionCount = in.readInt();
+            for (int i = 0; i < sectionCount; i++) {
+                String section = in.readUTF();
+                long sequence = in.readLong();
+                long timeMillis = in.readLong();
+                int count = in.readInt();
+                Set<String> productIds = new ArraySet<>(count);
+                for (int j = 0; j < count; j++) {
+                    productIds.add(in.readUTF());
+                }
+                sections.put(section, new EntitlementSnapshot(sequence, timeMillis, productIds));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been published yet.
+        } catch (IOException e) {
+            BillingLog.w("Unable to read the published entitlements", e);
+            sections.clear();
+        }
+        return sections;
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(ContextCompat.getNoBackupFilesDir(context), FILE_NAME));
+    }
+}
@@ -0,0 +1,57 @@
+package com.xlythe.playbilling;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/** A {@link BillingLogger} that writes to logcat. */
+final class LogcatLogger implements BillingLogger {
+    private static final String TAG = "PlayBilling";
+    // How long Log.isLoggable's answers are kept. Long enough to skip the lookup on hot paths, and
+    // short enough that a setprop takes effect without restarting the app.
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    // The lowest priority to log, or -1 to ask Log.isLoggable.
+    private final int mMinPriority;
+    // Bit n is set once we've asked Log.isLoggable about priority n, and bit n + 16 if it said yes.
+    // Asking is a system property lookup, so we only do it once per priority every REFRESH_NANOS.
+    private volatile int mLoggable;
+    // When mLoggable was last cleared, in System.nanoTime.
+    private volatile long mLoggableSinceNanos = System.nanoTime();
+
+    LogcatLogger(int minPriority) {
+        mMinPriority = minPriority;
+    }
+
+    @Override
+    public boolean isLoggable(int priority) {
+        if (mMinPriority >= 0) {
+            return priority >= mMinPriority;
+        }
+
+        int loggable = mLoggable;
+        long nowNanos = System.nanoTime();
+        if (nowNanos - mLoggableSinceNanos > REFRESH_NANOS) {
+            loggable = 0;
+            mLoggableSinceNanos = nowNanos;
+        }
+        if ((loggable & (1 << priority)) == 0) {
+            loggable |= 1 << priority;
+            if (Log.isLoggable(TAG, priority)) {
+                loggable |= 1 << (priority + 16);
+            }
+            mLoggable = loggable;
+        }
+        return (loggable & (1 << (priority + 16))) != 0;
+    }
+
+    @Override
+    public void log(int priority, String message, @Nullable Throwable throwable) {
+        if (throwable != null) {
+            message = message + '\n' + Log.getStackTraceString(throwable);
+        }
+        Log.println(priority, TAG, message);
+    }
+}
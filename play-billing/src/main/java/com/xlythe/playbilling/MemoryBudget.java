@@ -0,0 +1,206 @@
+package com.xlythe.playbilling;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caps how much heap the library's caches may hold. Each cache entry has an estimated size, and
+ * once the total goes over budget, entries are evicted until it's back under. The victim is the
+ * least recently used entry of whichever cache has the largest size times idle time, so a big
+ * entry that hasn't been touched in a while goes before a small one that's in use.
+ *
+ * Memory that can't be evicted (such as what the user is entitled to) is counted too, as pinned,
+ * so that it shows up in the report. It squeezes the caches, but is never evicted itself.
+ */
+final class MemoryBudget {
+    // The budget on most devices.
+    private static final long DEFAULT_BUDGET_BYTES = 256 * 1024;
+    // The budget on devices that report themselves as low on RAM.
+    private static final long LOW_RAM_BUDGET_BYTES = 64 * 1024;
+
+    /** Estimates the heap held by a value, in bytes. */
+    interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private final List<Cache<?, ?>> mCaches = new ArrayList<>();
+    // Only written while holding the lock, but volatile so that diagnostics can read them without it.
+    private volatile long mBudgetBytes;
+    private volatile long mUsedBytes;
+    private volatile long mPinnedBytes;
+    private long mEvictions;
+
+    MemoryBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /** A budget suited to the device. */
+    static MemoryBudget forDevice(@Nullable Context context) {
+        ActivityManager activityManager = context != null ? (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE) : null;
+        boolean lowRam = activityManager != null && activityManager.isLowRamDevice();
+        return new MemoryBudget(lowRam ? LOW_RAM_BUDGET_BYTES : DEFAULT_BUDGET_BYTES);
+    }
+
+    synchronized void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        trim();
+    }
+
+    /** Doesn't take the lock. */
+    long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /** Doesn't take the lock, so it may be caught partway through an eviction. */
+    long getUsedBytes() {
+        return mUsedBytes + mPinnedBytes;
+    }
+
+    /** Creates a cache that's held to this budget. */
+    synchronized <K, V> Cache<K, V> newCache(String name, Weigher<? super V> weigher) {
+        Cache<K, V> cache = new Cache<>(name, weigher);
+        mCaches.add(cache);
+        return cache;
+    }
+
+    /** Sets how much memory is held outside the caches, and can't be evicted. */
+    synchronized void setPinnedBytes(long bytes) {
+        mPinnedBytes = bytes;
+        trim();
+    }
+
+    /** A line per cache with its size, then the total against the budget. */
+    synchronized String getReport() {
+        StringBuilder builder = new StringBuilder();
+        for (Cache<?, ?> cache : mCaches) {
+            builder.append(cache.mName).append(": ")
+                    .append(cache.mEntries.size()).append(" entries, ")
+                    .append(cache.mBytes).append(" bytes\n");
+        }
+        builder.append("pinned: ").append(mPinnedBytes).append(" bytes\n");
+        builder.append("total: ").append(mUsedBytes + mPinnedBytes).append(" of ").append(mBudgetBytes)
+                .append(" bytes, ").append(mEvictions).append(" evictions");
+        return builder.toString();
+    }
+
+    // Evicts until we're back under budget, or there's nothing left to evict.
+    private void trim() {
+        while (mUsedBytes + mPinnedBytes > mBudgetBytes) {
+            long nowNanos = System.nanoTime();
+            Cache<?, ?> victim = null;
+            double victimScore = -1;
+            for (Cache<?, ?> cache : mCaches) {
+                Entry<?> eldest = cache.eldest();
+                if (eldest == null) {
+                    continue;
+                }
+                // +1 so that entries touched this instant still rank by size.
+                double score = (double) eldest.mBytes * (nowNanos - eldest.mAccessNanos + 1);
+                if (score > victimScore) {
+                    victim = cache;
+                    victimScore = score;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            victim.evictEldest();
+            mEvictions++;
+        }
+    }
+
+    private static final class Entry<V> {
+        final V mValue;
+        final long mBytes;
+        long mAccessNanos;
+
+        Entry(V value, long bytes) {
+            mValue = value;
+            mBytes = bytes;
+            mAccessNanos = System.nanoTime();
+        }
+    }
+
+    /** A least recently used cache, evicted as part of its {@link MemoryBudget}. */
+    final class Cache<K, V> {
+        private final String mName;
+        private final Weigher<? super V> mWeigher;
+        // Ordered by access, so the eldest is the least recently used.
+        private final LinkedHashMap<K, Entry<V>> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private long mBytes;
+
+        private Cache(String name, Weigher<? super V> weigher) {
+            mName = name;
+            mWeigher = weigher;
+        }
+
+        @Nullable
+        V get(K key) {
+            synchronized (MemoryBudget.this) {
+                Entry<V> entry = mEntries.get(key);
+                if (entry == null) {
+                    return null;
+                }
+                entry.mAccessNanos = System.nanoTime();
+                return entry.mValue;
+            }
+        }
+
+        void put(K key, V value) {
+            synchronized (MemoryBudget.this) {
+                Entry<V> entry = new Entry<>(value, mWeigher.weigh(value));
+                remove(key);
+                mEntries.put(key, entry);
+                mBytes += entry.mBytes;
+                mUsedBytes += entry.mBytes;
+                trim();
+            }
+        }
+
+        void remove(K key) {
+            synchronized (MemoryBudget.this) {
+                Entry<V> entry = mEntries.remove(key);
+                if (entry != null) {
+                    mBytes -= entry.mBytes;
+                    mUsedBytes -= entry.mBytes;
+                }
+            }
+        }
+
+        void clear() {
+            synchronized (MemoryBudget.this) {
+                mUsedBytes -= mBytes;
+                mBytes = 0;
+                mEntries.clear();
+            }
+        }
+
+        int size() {
+            synchronized (MemoryBudget.this) {
+                return mEntries.size();
+            }
+        }
+
+        @Nullable
+        private Entry<V> eldest() {
+            Iterator<Entry<V>> iterator = mEntries.values().iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        private void evictEldest() {
+            Iterator<Map.Entry<K, Entry<V>>> iterator = mEntries.entrySet().iterator();
+            Entry<V> entry = iterator.next().getValue();
+            iterator.remove();
+            mBytes -= entry.mBytes;
+            mUsedBytes -= entry.mBytes;
+        }
+    }
+}
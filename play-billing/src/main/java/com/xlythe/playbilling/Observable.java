@@ -0,0 +1,97 @@
+package com.xlythe.playbilling;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the latest value of something, and tells observers when it changes. Like LiveData, but
+ * observers can choose their own thread.
+ *
+ * New observers are given the current value right away. Updates are conflated, so an observer that
+ * falls behind is given only the latest value once it catches up, rather than every value in
+ * between.
+ */
+public final class Observable<T> {
+    public interface Observer<T> {
+        void onChanged(T value);
+    }
+
+    /** Returned by {@link #observe(Executor, Observer)}. Cancel it to stop observing. */
+    public interface Subscription {
+        void cancel();
+    }
+
+    private final CopyOnWriteArraySet<ObserverWrapper> mObservers = new CopyOnWriteArraySet<>();
+    @Nullable private volatile T mValue;
+
+    Observable() {}
+
+    /** The current value, or null if there isn't one yet. */
+    @Nullable
+    public T getValue() {
+        return mValue;
+    }
+
+    /**
+     * Starts observing. If there's already a value, the observer is given it right away (on the
+     * executor), and then given every later value that it isn't too slow to see.
+     */
+    public Subscription observe(Executor executor, Observer<T> observer) {
+        ObserverWrapper wrapper = new ObserverWrapper(executor, observer);
+        mObservers.add(wrapper);
+        if (mValue != null) {
+            wrapper.dispatch();
+        }
+        return wrapper;
+    }
+
+    void setValue(T value) {
+        mValue = value;
+        for (ObserverWrapper observer : mObservers) {
+            observer.dispatch();
+        }
+    }
+
+    private final class ObserverWrapper implements Subscription, Runnable {
+        private final Executor mExecutor;
+        private final Observer<T> mObserver;
+        // True while a delivery is queued on the executor. It delivers whatever mValue is by then.
+        private final AtomicBoolean mPending = new AtomicBoolean();
+        // The last value delivered, so the same value isn't delivered twice. Only touched on the executor.
+        @Nullable private T mDelivered;
+        private volatile boolean mCancelled;
+
+        ObserverWrapper(Executor executor, Observer<T> observer) {
+            mExecutor = executor;
+            mObserver = observer;
+        }
+
+        void dispatch() {
+            // Only queue a delivery if one isn't already waiting. Otherwise, it'll pick up the new value.
+            if (mPending.compareAndSet(false, true)) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // Cleared before mValue is read, so that a value set after the read queues another delivery.
+            mPending.set(false);
+            T value = mValue;
+            if (value == null || mCancelled || value == mDelivered) {
+                return;
+            }
+            mDelivered = value;
+            mObserver.onChanged(value);
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mObservers.remove(this);
+        }
+    }
+}
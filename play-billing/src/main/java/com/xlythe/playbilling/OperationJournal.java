@@ -0,0 +1,323 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable, append-only log of work we owe the Play Store, such as purchases that still need to
+ * be acknowledged and restores that couldn't reach it. Operations stay in the log until they're
+ * completed, and are replayed once the connection is healthy again, so a transient disconnect
+ * doesn't lose an acknowledgement (and get the purchase refunded).
+ *
+ * Appends are buffered and fsync'd in batches. A crash before a batch is synced loses at most the
+ * last {@link #SYNC_DELAY_MILLIS} of appends, and an unacknowledged purchase is found again by the
+ * next restore anyway. The log is rewritten with only the outstanding operations whenever it's
+ * mostly completed work.
+ *
+ * Only touch from the executor it's given.
+ */
+@WorkerThread
+final class OperationJournal {
+    private static final String FILE_NAME_PREFIX = "com.xlythe.playbilling.journal.";
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_COMPLETE = 2;
+
+    // How long appends wait to be synced, so that a burst of them costs one fsync.
+    private static final long SYNC_DELAY_MILLIS = 200;
+    // How many completed records the log may hold before it's rewritten.
+    private static final int COMPACTION_THRESHOLD = 64;
+    // The first retry after a failed replay. Each failure in a row doubles it.
+    private static final long INITIAL_REPLAY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_REPLAY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /** The kinds of work that are journaled. */
+    enum Type {
+        /** Acknowledge a purchase. Keyed by purchase token. */
+        ACKNOWLEDGE,
+        /** Restore purchases. Keyed by nothing, with the product IDs to restore as the payload. */
+        RESTORE
+    }
+
+    // Null if we have no Context, in which case the journal lives in memory only.
+    @Nullable private final File mFile;
+    private final ScheduledExecutorService mExecutor;
+    private final Runnable mReplay;
+
+    // The outstanding operations of each type, key -> payload.
+    private final Map<Type, Map<String, String>> mOperations = new EnumMap<>(Type.class);
+    // How many operations are in mOperations, of every type. Updated whenever that changes, so that
+    // it can be read from any thread.
+    private volatile int mSize;
+    // Records appended since the last sync.
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mBufferOut = new DataOutputStream(mBuffer);
+    // How many records are in the log, including ones still in mBuffer.
+    private int mRecordCount;
+    // True if the log on disk can't be appended to, and has to be rewritten on the next sync.
+    private boolean mNeedsRewrite;
+
+    @Nullable private ScheduledFuture<?> mSyncFuture;
+    @Nullable private ScheduledFuture<?> mReplayFuture;
+    // How many replays in a row have failed. Each one doubles the delay.
+    private int mAttempts;
+
+    OperationJournal(@Nullable Context context, String section, ScheduledExecutorService executor, Runnable replay) {
+        mFile = context != null ? new File(context.getFilesDir(), FILE_NAME_PREFIX + section) : null;
+        mExecutor = executor;
+        mReplay = replay;
+        for (Type type : Type.values()) {
+            mOperations.put(type, new LinkedHashMap<>());
+        }
+    }
+
+    /** Reads the operations left over from a previous launch, and replays them. */
+    void load() {
+        if (mFile == null) {
+            return;
+        }
+        read(mFile);
+        mSize = countOperations();
+        if (mNeedsRewrite || mRecordCount - size() > COMPACTION_THRESHOLD) {
+            rewrite();
+        }
+        if (!isEmpty()) {
+            scheduleReplay(0);
+        }
+    }
+
+    /** Journals an operation. Returns true if it wasn't already outstanding. */
+    boolean enqueue(Type type, String key, @Nullable String payload) {
+        if (payload == null) {
+            // Nothing to replay it from, so it's as good as not journaled.
+            BillingLog.w(() -> "Ignoring a " + type + " without a payload");
+            return false;
+        }
+        String previousPayload = mOperations.get(type).put(key, payload);
+        if (payload.equals(previousPayload)) {
+            return false;
+        }
+        if (previousPayload == null) {
+            mSize++;
+        }
+        append(RECORD_ENQUEUE, type, key, payload);
+        return true;
+    }
+
+    /** Marks an operation as done. Returns true if it was outstanding. */
+    boolean complete(Type type, String key) {
+        if (mOperations.get(type).remove(key) == null) {
+            return false;
+        }
+        mSize--;
+        append(RECORD_COMPLETE, type, key, null);
+        if (isEmpty()) {
+            mAttempts = 0;
+            cancelReplay();
+        }
+        return true;
+    }
+
+    /** Returns the payload of an outstanding operation, or null if there isn't one. */
+    @Nullable
+    String get(Type type, String key) {
+        return mOperations.get(type).get(key);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** A copy of the outstanding operations of the given type, key -> payload. */
+    Map<String, String> getOperations(Type type) {
+        return new LinkedHashMap<>(mOperations.get(type));
+    }
+
+    /** Replays the outstanding operations now, such as when the connection comes back. */
+    void replayNow() {
+        if (!isEmpty()) {
+            scheduleReplay(0);
+        }
+    }
+
+    /** Called when a replay couldn't finish. Backs off and tries again later. */
+    void onReplayFailed() {
+        if (isEmpty()) {
+            return;
+        }
+        mAttempts++;
+        scheduleReplay(Math.min(MAX_REPLAY_DELAY_MILLIS, INITIAL_REPLAY_DELAY_MILLIS << Math.min(mAttempts - 1, 16)));
+    }
+
+    /** Writes and fsyncs anything appended since the last sync. */
+    void sync() {
+        if (mSyncFuture != null) {
+            mSyncFuture.cancel(false);
+            mSyncFuture = null;
+        }
+        if (mFile == null || mBuffer.size() == 0) {
+            return;
+        }
+        if (mNeedsRewrite || !mFile.exists() || mRecordCount - size() > COMPACTION_THRESHOLD) {
+            rewrite();
+            return;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            mBuffer.writeTo(out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            BillingLog.w("Unable to write to the operation journal", e);
+            // We don't know how much made it to disk, so start over from what's in memory.
+            mNeedsRewrite = true;
+        }
+        mBuffer.reset();
+    }
+
+    /** Stops replaying, and syncs what's left. */
+    void cancel() {
+        cancelReplay();
+        sync();
+    }
+
+    /** How many operations are outstanding, of every type. Safe to call from any thread. */
+    int size() {
+        return mSize;
+    }
+
+    private int countOperations() {
+        int size = 0;
+        for (Map<String, String> operations : mOperations.values()) {
+            size += operations.size();
+        }
+        return size;
+    }
+
+    private void append(byte record, Type type, String key, @Nullable String payload) {
+        try {
+            mBufferOut.writeByte(record);
+            mBufferOut.writeByte(type.ordinal());
+            mBufferOut.writeUTF(key);
+            if (payload != null) {
+                mBufferOut.writeUTF(payload);
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        mRecordCount++;
+        if (mSyncFuture == null && mFile != null) {
+            mSyncFuture = mExecutor.schedule(this::sync, SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void read(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                mNeedsRewrite = true;
+                return;
+            }
+            while (true) {
+                byte record;
+                try {
+                    record = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int typeOrdinal = in.readByte();
+                if (typeOrdinal < 0 || typeOrdinal >= Type.values().length) {
+                    throw new IOException("Unknown operation type " + typeOrdinal);
+                }
+                Map<String, String> operations = mOperations.get(Type.values()[typeOrdinal]);
+                String key = in.readUTF();
+                if (record == RECORD_ENQUEUE) {
+                    operations.put(key, in.readUTF());
+                } else if (record == RECORD_COMPLETE) {
+                    operations.remove(key);
+                } else {
+                    throw new IOException("Unknown record " + record);
+                }
+                mRecordCount++;
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been journaled yet.
+        } catch (IOException e) {
+            // Most likely an append that was cut short by a crash. Everything before it stands,
+            // but nothing can be appended after it.
+            BillingLog.w("The operation journal ends with a partial record", e);
+            mNeedsRewrite = true;
+        }
+    }
+
+    // Replaces the log with one that holds only the outstanding operations.
+    private void rewrite() {
+        File file = mFile;
+        if (file == null) {
+            return;
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(VERSION);
+            for (Map.Entry<Type, Map<String, String>> operations : mOperations.entrySet()) {
+                for (Map.Entry<String, String> operation : operations.getValue().entrySet()) {
+                    data.writeByte(RECORD_ENQUEUE);
+                    data.writeByte(operations.getKey().ordinal());
+                    data.writeUTF(operation.getKey());
+                    data.writeUTF(operation.getValue());
+                }
+            }
+            data.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            BillingLog.w("Unable to rewrite the operation journal", e);
+            tempFile.delete();
+            mNeedsRewrite = true;
+            mBuffer.reset();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            BillingLog.w("Unable to replace the operation journal");
+            tempFile.delete();
+            mNeedsRewrite = true;
+            mBuffer.reset();
+            return;
+        }
+        mNeedsRewrite = false;
+        mRecordCount = size();
+        mBuffer.reset();
+    }
+
+    private void scheduleReplay(long delayMillis) {
+        cancelReplay();
+        mReplayFuture = mExecutor.schedule(mReplay, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelReplay() {
+        if (mReplayFuture != null) {
+            mReplayFuture.cancel(false);
+            mReplayFuture = null;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.xlythe.playbilling;
+
+import android.app.Activity;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient.ProductType;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.ProductDetails;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A paywall that's on screen. While it's open, the connection to the Play Store is held open, and
+ * the details of each product on the paywall are fetched and turned into {@link BillingFlowParams}
+ * ahead of time. When the user taps a product, {@link #launch(Activity, String)} shows the
+ * purchase dialog straight from the UI thread, so the only wait is the Play Store's own.
+ *
+ * Open one with {@link SupportBillingClient#openPaywall(List, String)} when the paywall is shown,
+ * and {@link #close()} it when it's hidden.
+ */
+public final class PaywallSession {
+    /** A product that's ready to launch. */
+    static final class PreparedPurchase {
+        final ProductDetails productDetails;
+        final BillingFlowParams params;
+
+        PreparedPurchase(ProductDetails productDetails, BillingFlowParams params) {
+            this.productDetails = productDetails;
+            this.params = params;
+        }
+    }
+
+    private final SupportBillingClient mBillingClient;
+    private final List<String> mProductIds;
+    @ProductType private final String mProductType;
+    // Product ID -> what's needed to launch it. Filled in on the billing thread, read on the UI thread.
+    private final Map<String, PreparedPurchase> mPreparedPurchases = new ConcurrentHashMap<>();
+    private final TaskCompletionSource<Void> mReady = new TaskCompletionSource<>();
+    private volatile boolean mClosed;
+
+    PaywallSession(SupportBillingClient billingClient, List<String> productIds, @ProductType String productType) {
+        mBillingClient = billingClient;
+        mProductIds = Collections.unmodifiableList(productIds);
+        mProductType = productType;
+    }
+
+    public List<String> getProductIds() {
+        return mProductIds;
+    }
+
+    /**
+     * Completes once we're connected and every product that could be looked up is ready to launch.
+     * Fails if we couldn't connect. Launching before then still works, just not as quickly.
+     */
+    public Task<Void> getReady() {
+        return mReady.getTask();
+    }
+
+    /** The details of a product on the paywall, such as its price, or null if they aren't ready yet. */
+    @Nullable
+    public ProductDetails getProductDetails(String productId) {
+        PreparedPurchase preparedPurchase = mPreparedPurchases.get(productId);
+        return preparedPurchase != null ? preparedPurchase.productDetails : null;
+    }
+
+    /**
+     * Shows the purchase dialog for a product. If it's ready and we're still connected, the dialog
+     * is launched right here, on the UI thread. Otherwise this falls back to
+     * {@link SupportBillingClient#startPurchase(Activity, String, String)}.
+     */
+    @MainThread
+    public PurchaseSession launch(Activity activity, String productId) {
+        PreparedPurchase preparedPurchase = mClosed ? null : mPreparedPurchases.get(productId);
+        if (preparedPurchase == null) {
+            return mBillingClient.startPurchase(activity, productId, mProductType);
+        }
+        return mBillingClient.launchPreparedPurchase(activity, preparedPurchase.productDetails, preparedPurchase.params);
+    }
+
+    /** Lets go of the connection. Call when the paywall is no longer visible. Safe to call twice. */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mPreparedPurchases.clear();
+        mBillingClient.closePaywall();
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    void onPrepared(String productId, PreparedPurchase preparedPurchase) {
+        if (!mClosed) {
+            mPreparedPurchases.put(productId, preparedPurchase);
+        }
+    }
+
+    void onReady() {
+        mReady.trySetResult(null);
+    }
+
+    void onFailed(Exception e) {
+        mReady.trySetException(e);
+    }
+}
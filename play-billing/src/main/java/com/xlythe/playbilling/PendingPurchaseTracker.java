@@ -0,0 +1,149 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.google.common.base.Joiner;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers purchases that are waiting on payment (eg. a cash code that hasn't been paid at a
+ * store yet), keyed by purchase token, and checks back on them with exponential backoff until
+ * they're paid for or cancelled. They're persisted, so a purchase that's paid for while the app
+ * isn't running is picked up on the next launch without a full restore.
+ *
+ * Only touch from the executor it's given.
+ */
+@WorkerThread
+final class PendingPurchaseTracker {
+    private static final String PREFERENCES_NAME = "com.xlythe.playbilling.pending_purchases.";
+    // The first re-check is soon, in case the user is paying right now.
+    private static final long INITIAL_RECHECK_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Pending purchases can take days to complete, so there's no point looking more often than this.
+    private static final long MAX_RECHECK_DELAY_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    @Nullable private final Context mContext;
+    // Our API key's own namespace, so that clients for other keys don't check on our purchases.
+    private final String mSection;
+    private final ScheduledExecutorService mExecutor;
+    private final Runnable mRecheck;
+
+    // Purchase token -> the products in that purchase.
+    private final Map<String, String> mPendingPurchases = new HashMap<>();
+    // How many purchases are in mPendingPurchases. Updated whenever that changes, so that it can be
+    // read from any thread.
+    private volatile int mSize;
+    // Null until loaded, or if we have no Context to persist with.
+    @Nullable private SharedPreferences mPreferences;
+
+    @Nullable private ScheduledFuture<?> mRecheckFuture;
+    // How many re-checks in a row have found nothing new. Each one doubles the delay.
+    private int mAttempts;
+
+    PendingPurchaseTracker(@Nullable Context context, String section, ScheduledExecutorService executor, Runnable recheck) {
+        mContext = context;
+        mSection = section;
+        mExecutor = executor;
+        mRecheck = recheck;
+    }
+
+    /** Reads the pending purchases left over from a previous launch, and checks on them. */
+    void load() {
+        if (mContext == null) {
+            return;
+        }
+        mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME + mSection, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                mPendingPurchases.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        mSize = mPendingPurchases.size();
+        if (!mPendingPurchases.isEmpty()) {
+            schedule(0);
+        }
+    }
+
+    /** Starts watching a pending purchase. Returns true if it wasn't already being watched. */
+    boolean add(PurchaseRecord purchase) {
+        String products = Joiner.on(',').join(purchase.getProducts());
+        if (products.equals(mPendingPurchases.put(purchase.getPurchaseToken(), products))) {
+            return false;
+        }
+        mSize = mPendingPurchases.size();
+        if (mPreferences != null) {
+            mPreferences.edit().putString(purchase.getPurchaseToken(), products).apply();
+        }
+        // Something new to watch, so start over from the shortest delay.
+        mAttempts = 0;
+        schedule(INITIAL_RECHECK_DELAY_MILLIS);
+        return true;
+    }
+
+    /** Stops watching a purchase. Returns true if it was pending. */
+    boolean remove(String purchaseToken) {
+        if (mPendingPurchases.remove(purchaseToken) == null) {
+            return false;
+        }
+        mSize = mPendingPurchases.size();
+        if (mPreferences != null) {
+            mPreferences.edit().remove(purchaseToken).apply();
+        }
+        if (mPendingPurchases.isEmpty() && mRecheckFuture != null) {
+            mRecheckFuture.cancel(false);
+            mRecheckFuture = null;
+        }
+        return true;
+    }
+
+    boolean contains(String purchaseToken) {
+        return mPendingPurchases.containsKey(purchaseToken);
+    }
+
+    boolean isEmpty() {
+        return mPendingPurchases.isEmpty();
+    }
+
+    /** Safe to call from any thread. */
+    int size() {
+        return mSize;
+    }
+
+    /** A copy of the pending purchase tokens, safe to iterate while removing. */
+    Set<String> getPurchaseTokens() {
+        return new HashSet<>(mPendingPurchases.keySet());
+    }
+
+    /** Called after a re-check. If anything is still pending, backs off and checks again later. */
+    void onRechecked() {
+        if (mPendingPurchases.isEmpty()) {
+            mAttempts = 0;
+            cancel();
+            return;
+        }
+        mAttempts++;
+        schedule(Math.min(MAX_RECHECK_DELAY_MILLIS, INITIAL_RECHECK_DELAY_MILLIS << Math.min(mAttempts, 16)));
+    }
+
+    void cancel() {
+        if (mRecheckFuture != null) {
+            mRecheckFuture.cancel(false);
+            mRecheckFuture = null;
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        cancel();
+        mRecheckFuture = mExecutor.schedule(mRecheck, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
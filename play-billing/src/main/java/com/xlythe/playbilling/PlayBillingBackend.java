@@ -0,0 +1,77 @@
+package com.xlythe.playbilling;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClient.ProductType;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchaseHistoryParams;
+import com.android.billingclient.api.QueryPurchasesParams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The default {@link BillingBackend}, which talks to the Play Store through Google's
+ * {@link BillingClient}.
+ */
+class PlayBillingBackend implements BillingBackend {
+    private final BillingClient mBillingClient;
+
+    PlayBillingBackend(Context context, PurchasesUpdatedListener purchasesUpdatedListener) {
+        this.mBillingClient = BillingClient.newBuilder(context)
+                .enablePendingPurchases()
+                .setListener(purchasesUpdatedListener)
+                .build();
+    }
+
+    @Override
+    public void startConnection(BillingClientStateListener listener) {
+        mBillingClient.startConnection(listener);
+    }
+
+    @Override
+    public void endConnection() {
+        mBillingClient.endConnection();
+    }
+
+    @Override
+    public void queryPurchasesAsync(@ProductType String productType, PurchasesResponseListener listener) {
+        mBillingClient.queryPurchasesAsync(QueryPurchasesParams.newBuilder().setProductType(productType).build(), listener);
+    }
+
+    @Override
+    public void queryPurchaseHistoryAsync(@ProductType String productType, PurchaseHistoryResponseListener listener) {
+        mBillingClient.queryPurchaseHistoryAsync(QueryPurchaseHistoryParams.newBuilder().setProductType(productType).build(), listener);
+    }
+
+    @Override
+    public void queryProductDetailsAsync(List<String> productIds, @ProductType String productType, ProductDetailsResponseListener listener) {
+        List<QueryProductDetailsParams.Product> products = new ArrayList<>(productIds.size());
+        for (String productId : productIds) {
+            products.add(QueryProductDetailsParams.Product.newBuilder().setProductId(productId).setProductType(productType).build());
+        }
+        mBillingClient.queryProductDetailsAsync(QueryProductDetailsParams.newBuilder().setProductList(products).build(), listener);
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(Activity activity, ProductDetails productDetails, BillingFlowParams params) {
+        return mBillingClient.launchBillingFlow(activity, params);
+    }
+
+    @Override
+    public void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+        mBillingClient.acknowledgePurchase(AcknowledgePurchaseParams.newBuilder().setPurchaseToken(purchaseToken).build(), listener);
+    }
+}
@@ -0,0 +1,69 @@
+package com.xlythe.playbilling;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each product ID a small, stable int, so that entitlements can be kept as a bitset and
+ * checked without hashing a String on every lookup. Indices are never reused. Lookups are lock
+ * free and don't allocate; interning a new product takes a lock.
+ */
+final class ProductIndex {
+    // Product ID -> index. Integers are only boxed once, when the product is interned.
+    private final ConcurrentHashMap<String, Integer> mIndices = new ConcurrentHashMap<>();
+    // Index -> product ID. Replaced, never modified, so it can be read without the lock.
+    private volatile String[] mProductIds = new String[0];
+
+    /** Returns the index of the product, assigning it one if it doesn't have one yet. */
+    int intern(String productId) {
+        Integer index = mIndices.get(productId);
+        if (index != null) {
+            return index;
+        }
+        synchronized (this) {
+            index = mIndices.get(productId);
+            if (index != null) {
+                return index;
+            }
+            String[] productIds = Arrays.copyOf(mProductIds, mProductIds.length + 1);
+            productIds[productIds.length - 1] = productId;
+            mProductIds = productIds;
+            mIndices.put(productId, productIds.length - 1);
+            return productIds.length - 1;
+        }
+    }
+
+    /** Returns the index of the product, or -1 if it's never been interned. */
+    int indexOf(String productId) {
+        Integer index = mIndices.get(productId);
+        return index != null ? index : -1;
+    }
+
+    String getProductId(int index) {
+        return mProductIds[index];
+    }
+
+    int size() {
+        return mProductIds.length;
+    }
+
+    /** Builds a bitset with the bits of the given products set. */
+    long[] toBits(Collection<String> productIds) {
+        long[] bits = new long[0];
+        for (String productId : productIds) {
+            int index = intern(productId);
+            int word = index >>> 6;
+            if (word >= bits.length) {
+                bits = Arrays.copyOf(bits, word + 1);
+            }
+            bits[word] |= 1L << index;
+        }
+        return bits;
+    }
+
+    static boolean contains(long[] bits, int index) {
+        int word = index >>> 6;
+        return index >= 0 && word < bits.length && (bits[word] & (1L << index)) != 0;
+    }
+}
@@ -0,0 +1,236 @@
+package com.xlythe.playbilling;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+
+/**
+ * A forward-only reader over a JSON string, in the spirit of android.util.JsonReader. It doesn't
+ * build a tree, so reading a few fields out of a purchase only costs a single pass over the
+ * string and the fields that are actually kept. Commas are treated leniently.
+ */
+final class PurchaseJsonReader {
+    private final String mJson;
+    private int mPosition;
+
+    PurchaseJsonReader(String json) {
+        mJson = json;
+    }
+
+    void beginObject() throws JSONException {
+        consume('{');
+    }
+
+    void endObject() throws JSONException {
+        consume('}');
+    }
+
+    void beginArray() throws JSONException {
+        consume('[');
+    }
+
+    void endArray() throws JSONException {
+        consume(']');
+    }
+
+    /** Returns true if the current object or array has another element. */
+    boolean hasNext() throws JSONException {
+        skipWhitespace();
+        if (peekChar() == ',') {
+            mPosition++;
+            skipWhitespace();
+        }
+        char c = peekChar();
+        return c != '}' && c != ']';
+    }
+
+    String nextName() throws JSONException {
+        skipWhitespace();
+        String name = readString();
+        consume(':');
+        return name;
+    }
+
+    @Nullable
+    String nextString() throws JSONException {
+        skipWhitespace();
+        if (peekChar() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        return readString();
+    }
+
+    long nextLong() throws JSONException {
+        skipWhitespace();
+        int start = mPosition;
+        while (mPosition < mJson.length() && isNumberChar(mJson.charAt(mPosition))) {
+            mPosition++;
+        }
+        if (start == mPosition) {
+            throw syntaxError("Expected a number");
+        }
+        String number = mJson.substring(start, mPosition);
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(number);
+            } catch (NumberFormatException e2) {
+                throw syntaxError("Malformed number " + number);
+            }
+        }
+    }
+
+    boolean nextBoolean() throws JSONException {
+        skipWhitespace();
+        if (peekChar() == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        expectLiteral("false");
+        return false;
+    }
+
+    /** Skips over the next value, including any nested objects or arrays. */
+    void skipValue() throws JSONException {
+        skipWhitespace();
+        char c = peekChar();
+        if (c == '"') {
+            skipString();
+            return;
+        }
+        if (c != '{' && c != '[') {
+            // A number or a literal. Read until the next delimiter.
+            while (mPosition < mJson.length()) {
+                c = mJson.charAt(mPosition);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    return;
+                }
+                mPosition++;
+            }
+            return;
+        }
+
+        int depth = 0;
+        while (mPosition < mJson.length()) {
+            c = mJson.charAt(mPosition);
+            if (c == '"') {
+                skipString();
+                continue;
+            }
+            mPosition++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw syntaxError("Unterminated value");
+    }
+
+    private String readString() throws JSONException {
+        consume('"');
+        int start = mPosition;
+        // Fast path: no escapes, so the value is a plain substring.
+        while (mPosition < mJson.length()) {
+            char c = mJson.charAt(mPosition);
+            if (c == '"') {
+                return mJson.substring(start, mPosition++);
+            }
+            if (c == '\\') {
+                break;
+            }
+            mPosition++;
+        }
+
+        StringBuilder builder = new StringBuilder(mPosition - start + 16);
+        builder.append(mJson, start, mPosition);
+        while (mPosition < mJson.length()) {
+            char c = mJson.charAt(mPosition++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (mPosition >= mJson.length()) {
+                break;
+            }
+            char escaped = mJson.charAt(mPosition++);
+            switch (escaped) {
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (mPosition + 4 > mJson.length()) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(mJson.substring(mPosition, mPosition + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("Malformed escape sequence");
+                    }
+                    mPosition += 4;
+                    break;
+                default: builder.append(escaped); break;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipString() throws JSONException {
+        consume('"');
+        while (mPosition < mJson.length()) {
+            char c = mJson.charAt(mPosition++);
+            if (c == '\\') {
+                mPosition++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void expectLiteral(String literal) throws JSONException {
+        if (!mJson.startsWith(literal, mPosition)) {
+            throw syntaxError("Expected " + literal);
+        }
+        mPosition += literal.length();
+    }
+
+    private void consume(char expected) throws JSONException {
+        skipWhitespace();
+        if (peekChar() != expected) {
+            throw syntaxError("Expected " + expected);
+        }
+        mPosition++;
+    }
+
+    private char peekChar() throws JSONException {
+        if (mPosition >= mJson.length()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return mJson.charAt(mPosition);
+    }
+
+    private void skipWhitespace() {
+        while (mPosition < mJson.length() && Character.isWhitespace(mJson.charAt(mPosition))) {
+            mPosition++;
+        }
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPosition);
+    }
+}
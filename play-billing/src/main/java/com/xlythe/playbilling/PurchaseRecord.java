@@ -0,0 +1,259 @@
+package com.xlythe.playbilling;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The parts of a purchase that the library acts on. Records from the purchase history are parsed
+ * once, with a {@link PurchaseJsonReader}, instead of being round-tripped through {@link Purchase}.
+ * A {@link Purchase} is only built if a listener needs one.
+ *
+ * Records that are kept around (such as what the user is entitled to) are {@link #compact compacted}
+ * once verified. Their product IDs are shared with the {@link ProductIndex}, the token is packed
+ * into bytes, and unless asked to keep it, the signed JSON is dropped.
+ */
+final class PurchaseRecord {
+    // The purchaseState in the raw JSON that means the user hasn't paid yet.
+    private static final int JSON_PURCHASE_STATE_PENDING = 4;
+    // The purchaseState in the raw JSON that means the user has paid.
+    private static final int JSON_PURCHASE_STATE_PURCHASED = 0;
+    // Roughly what an object header and its fields cost, for estimates.
+    private static final int OBJECT_OVERHEAD_BYTES = 64;
+
+    private List<String> mProducts;
+    // Null once compacted, and kept in mCompactPurchaseToken instead.
+    @Nullable private String mPurchaseToken;
+    @Nullable private byte[] mCompactPurchaseToken;
+    private final long mPurchaseTime;
+    private final int mPurchaseState;
+    private final boolean mAcknowledged;
+    private final boolean mAutoRenewing;
+    // Null if dropped when compacted.
+    @Nullable private String mOriginalJson;
+    @Nullable private String mSignature;
+
+    // Built lazily, or handed to us if the Play Store already gave us one.
+    @Nullable private Purchase mPurchase;
+
+    private PurchaseRecord(List<String> products, String purchaseToken, long purchaseTime, int purchaseState,
+                           boolean acknowledged, boolean autoRenewing, String originalJson, String signature, @Nullable Purchase purchase) {
+        this.mProducts = products;
+        this.mPurchaseToken = purchaseToken;
+        this.mPurchaseTime = purchaseTime;
+        this.mPurchaseState = purchaseState;
+        this.mAcknowledged = acknowledged;
+        this.mAutoRenewing = autoRenewing;
+        this.mOriginalJson = originalJson;
+        this.mSignature = signature;
+        this.mPurchase = purchase;
+    }
+
+    /** Wraps a purchase that's already been parsed. */
+    static PurchaseRecord of(Purchase purchase) {
+        return new PurchaseRecord(
+                purchase.getProducts(),
+                purchase.getPurchaseToken(),
+                purchase.getPurchaseTime(),
+                purchase.getPurchaseState(),
+                purchase.isAcknowledged(),
+                purchase.isAutoRenewing(),
+                purchase.getOriginalJson(),
+                purchase.getSignature(),
+                purchase);
+    }
+
+    /** Parses purchase JSON, as found in a purchase or a purchase history record. */
+    static PurchaseRecord parse(String originalJson, String signature) throws JSONException {
+        List<String> products = Collections.emptyList();
+        String purchaseToken = null;
+        long purchaseTime = 0;
+        int purchaseState = Purchase.PurchaseState.PURCHASED;
+        // Like Purchase, anything that doesn't say otherwise is considered acknowledged.
+        boolean acknowledged = true;
+        boolean autoRenewing = false;
+
+        PurchaseJsonReader reader = new PurchaseJsonReader(originalJson);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "productIds":
+                    List<String> productIds = new ArrayList<>(1);
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        productIds.add(reader.nextString());
+                    }
+                    reader.endArray();
+                    products = productIds;
+                    break;
+                case "productId":
+                    String productId = reader.nextString();
+                    // productIds wins if both are present.
+                    if (products.isEmpty() && productId != null) {
+                        products = Collections.singletonList(productId);
+                    }
+                    break;
+                case "token":
+                case "purchaseToken":
+                    purchaseToken = reader.nextString();
+                    break;
+                case "purchaseTime":
+                    purchaseTime = reader.nextLong();
+                    break;
+                case "purchaseState":
+                    purchaseState = reader.nextLong() == JSON_PURCHASE_STATE_PENDING
+                            ? Purchase.PurchaseState.PENDING
+                            : Purchase.PurchaseState.PURCHASED;
+                    break;
+                case "acknowledged":
+                    acknowledged = reader.nextBoolean();
+                    break;
+                case "autoRenewing":
+                    autoRenewing = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (purchaseToken == null) {
+            throw new JSONException("Purchase is missing a token");
+        }
+        return new PurchaseRecord(products, purchaseToken, purchaseTime, purchaseState, acknowledged, autoRenewing, originalJson, signature, null);
+    }
+
+    synchronized List<String> getProducts() {
+        return mProducts;
+    }
+
+    synchronized String getPurchaseToken() {
+        if (mPurchaseToken != null) {
+            return mPurchaseToken;
+        }
+        return new String(Objects.requireNonNull(mCompactPurchaseToken), StandardCharsets.UTF_8);
+    }
+
+    long getPurchaseTime() {
+        return mPurchaseTime;
+    }
+
+    int getPurchaseState() {
+        return mPurchaseState;
+    }
+
+    boolean isAcknowledged() {
+        return mAcknowledged;
+    }
+
+    boolean isAutoRenewing() {
+        return mAutoRenewing;
+    }
+
+    /** The signed JSON. Null if it was dropped when the record was compacted. */
+    @Nullable
+    synchronized String getOriginalJson() {
+        return mOriginalJson;
+    }
+
+    @Nullable
+    synchronized String getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * The record as a {@link Purchase}, for handing to listeners. Built on first use. If the signed
+     * JSON was dropped, the Purchase is rebuilt from what we kept, and has no signature.
+     */
+    synchronized Purchase toPurchase() {
+        if (mPurchase != null) {
+            return mPurchase;
+        }
+        try {
+            if (mOriginalJson == null) {
+                // Not cached, as holding onto it would undo the compaction.
+                return new Purchase(toJson(), "");
+            }
+            mPurchase = new Purchase(mOriginalJson, Objects.requireNonNull(mSignature));
+            return mPurchase;
+        } catch (JSONException e) {
+            // We already parsed this JSON successfully, so this shouldn't happen.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Shrinks the record, for keeping around once it's been verified. Product IDs are swapped for
+     * the shared copies in the index, and the token is packed into bytes. The signed JSON, and the
+     * Purchase built from it, are dropped unless retainJson is set.
+     */
+    synchronized void compact(ProductIndex productIndex, boolean retainJson) {
+        if (mPurchaseToken != null) {
+            List<String> products = new ArrayList<>(mProducts.size());
+            for (String productId : mProducts) {
+                products.add(productIndex.getProductId(productIndex.intern(productId)));
+            }
+            mProducts = products.size() == 1 ? Collections.singletonList(products.get(0)) : Collections.unmodifiableList(products);
+            mCompactPurchaseToken = mPurchaseToken.getBytes(StandardCharsets.UTF_8);
+            mPurchaseToken = null;
+        }
+        if (!retainJson) {
+            mOriginalJson = null;
+            mSignature = null;
+            mPurchase = null;
+        }
+    }
+
+    /** Roughly how much heap the record holds, in bytes. */
+    synchronized long estimateBytes() {
+        long bytes = OBJECT_OVERHEAD_BYTES;
+        if (mPurchaseToken != null) {
+            // Not compacted, so the record has copies of its own.
+            bytes += OBJECT_OVERHEAD_BYTES + 2L * mPurchaseToken.length();
+            for (String productId : mProducts) {
+                bytes += OBJECT_OVERHEAD_BYTES + 2L * productId.length();
+            }
+        } else {
+            // Product IDs are shared with the index, so only the references count.
+            bytes += 8L * mProducts.size() + OBJECT_OVERHEAD_BYTES + Objects.requireNonNull(mCompactPurchaseToken).length;
+        }
+        if (mOriginalJson != null && mSignature != null) {
+            bytes += 2L * (mOriginalJson.length() + mSignature.length());
+        }
+        if (mPurchase != null) {
+            // A Purchase holds the JSON again, along with a parsed copy.
+            bytes += 4L * Objects.requireNonNull(mOriginalJson).length();
+        }
+        return bytes;
+    }
+
+    // Rebuilds enough of the purchase JSON for Purchase's getters, from what we kept.
+    private String toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("productIds", new JSONArray(mProducts));
+        json.put("purchaseToken", getPurchaseToken());
+        json.put("purchaseTime", mPurchaseTime);
+        json.put("purchaseState", mPurchaseState == Purchase.PurchaseState.PENDING ? JSON_PURCHASE_STATE_PENDING : JSON_PURCHASE_STATE_PURCHASED);
+        json.put("acknowledged", mAcknowledged);
+        json.put("autoRenewing", mAutoRenewing);
+        return json.toString();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "PurchaseRecord{products=" + mProducts + ", purchaseState=" + mPurchaseState + ", acknowledged=" + mAcknowledged + "}";
+    }
+}
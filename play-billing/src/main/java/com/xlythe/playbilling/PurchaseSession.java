@@ -0,0 +1,133 @@
+package com.xlythe.playbilling;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One call to {@link SupportBillingClient#startPurchase(Activity, String, String)}, followed from
+ * the launch of the purchase dialog to the user's decision, and then through verification and
+ * acknowledgement. It records how long each phase took, and completes {@link #getPurchase()} with
+ * the outcome.
+ */
+public final class PurchaseSession {
+    /** The phases of a purchase, in order. */
+    public enum Phase {
+        /** Connecting to the Play Store. */
+        CONNECT,
+        /** Looking up the product's details. */
+        DETAILS,
+        /** Launching the purchase dialog. */
+        LAUNCH,
+        /** Waiting for the user to buy the product or back out. */
+        USER_DECISION,
+        /** Checking the purchase's signature. */
+        VERIFY,
+        /** Acknowledging the purchase, so that it isn't refunded. */
+        ACKNOWLEDGE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String mProductId;
+    private final TaskCompletionSource<BillingResult> mLaunchResult = new TaskCompletionSource<>();
+    private final TaskCompletionSource<Purchase> mPurchase = new TaskCompletionSource<>();
+
+    // When each phase began and how long it took, in nanos. -1 if it hasn't begun or finished.
+    private final long[] mStartNanos = new long[PHASES.length];
+    private final long[] mDurationNanos = new long[PHASES.length];
+
+    PurchaseSession(String productId) {
+        mProductId = productId;
+        Arrays.fill(mStartNanos, -1);
+        Arrays.fill(mDurationNanos, -1);
+    }
+
+    public String getProductId() {
+        return mProductId;
+    }
+
+    /**
+     * Completes once the purchase dialog is showing, or fails if it couldn't be shown. This is
+     * what {@link SupportBillingClient#purchaseItem(Activity, String, String)} returns.
+     */
+    public Task<BillingResult> getLaunchResult() {
+        return mLaunchResult.getTask();
+    }
+
+    /**
+     * Completes with the purchase once it's been verified and the Play Store has answered our
+     * acknowledgement, or fails if the user backed out, the purchase couldn't be verified or the
+     * Play Store refused the acknowledgement. If the acknowledgement couldn't be delivered (eg. the
+     * connection dropped), the purchase completes anyway and is acknowledged again later. A
+     * purchase that's waiting on payment also completes it, returned as is with a state of
+     * {@link Purchase.PurchaseState#PENDING} and not yet acknowledged.
+     */
+    public Task<Purchase> getPurchase() {
+        return mPurchase.getTask();
+    }
+
+    /** How long the phase took, in millis, or -1 if it hasn't finished or never happened. */
+    public synchronized long getDurationMillis(Phase phase) {
+        long durationNanos = mDurationNanos[phase.ordinal()];
+        return durationNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    }
+
+    synchronized void begin(Phase phase) {
+        mStartNanos[phase.ordinal()] = System.nanoTime();
+    }
+
+    synchronized void end(Phase phase) {
+        long startNanos = mStartNanos[phase.ordinal()];
+        if (startNanos >= 0 && mDurationNanos[phase.ordinal()] < 0) {
+            mDurationNanos[phase.ordinal()] = System.nanoTime() - startNanos;
+        }
+    }
+
+    synchronized boolean isAwaitingDecision() {
+        return mStartNanos[Phase.USER_DECISION.ordinal()] >= 0 && mDurationNanos[Phase.USER_DECISION.ordinal()] < 0;
+    }
+
+    void onLaunched(BillingResult billingResult) {
+        mLaunchResult.trySetResult(billingResult);
+    }
+
+    void onPurchased(Purchase purchase) {
+        endAll();
+        mPurchase.trySetResult(purchase);
+    }
+
+    void onFailed(Exception e) {
+        endAll();
+        mLaunchResult.trySetException(e);
+        mPurchase.trySetException(e);
+    }
+
+    // Ends whatever phase was in progress when the session finished.
+    private synchronized void endAll() {
+        for (Phase phase : PHASES) {
+            end(phase);
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("PurchaseSession{productId=").append(mProductId);
+        for (Phase phase : PHASES) {
+            long durationMillis = getDurationMillis(phase);
+            if (durationMillis >= 0) {
+                builder.append(", ").append(phase).append('=').append(durationMillis).append("ms");
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
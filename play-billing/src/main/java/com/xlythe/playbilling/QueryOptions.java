@@ -0,0 +1,78 @@
+package com.xlythe.playbilling;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fresh the results of {@link SupportBillingClient#queryPurchases(java.util.List, QueryOptions)}
+ * need to be. Results younger than the max age are served from memory, without asking the Play
+ * Store. Results that are older, but still within the stale window after that, are served from
+ * memory too while a query runs in the background. Anything older waits for a query to finish.
+ */
+public final class QueryOptions {
+    /**
+     * Always waits for a query. This is what {@link SupportBillingClient#queryPurchases(java.util.List)}
+     * does.
+     */
+    public static final QueryOptions REFRESH = new QueryOptions(0, 0);
+
+    /**
+     * Serves results younger than 30 seconds as is, and results younger than 5 minutes while
+     * refreshing them. This is what {@link SupportBillingClient#registerPurchaseListener(java.util.List, SupportBillingClient.PurchaseListener)}
+     * does, so that registering on every screen doesn't query the Play Store every time.
+     */
+    public static final QueryOptions DEFAULT = staleWhileRevalidate(30, 270, TimeUnit.SECONDS);
+
+    private final long mMaxAgeNanos;
+    private final long mStaleWhileRevalidateNanos;
+
+    private QueryOptions(long maxAgeNanos, long staleWhileRevalidateNanos) {
+        this.mMaxAgeNanos = maxAgeNanos;
+        this.mStaleWhileRevalidateNanos = staleWhileRevalidateNanos;
+    }
+
+    /** Serves results younger than the max age as is, and waits for a query otherwise. */
+    public static QueryOptions maxAge(long maxAge, TimeUnit unit) {
+        return staleWhileRevalidate(maxAge, 0, unit);
+    }
+
+    /**
+     * Serves results younger than the max age as is. Results older than that, by up to the stale
+     * window, are served while a query refreshes them in the background.
+     */
+    public static QueryOptions staleWhileRevalidate(long maxAge, long staleWindow, TimeUnit unit) {
+        if (maxAge < 0 || staleWindow < 0) {
+            throw new IllegalArgumentException("Durations must not be negative");
+        }
+        long maxAgeNanos = unit.toNanos(maxAge);
+        // Capped so that the two can be added without overflowing.
+        long staleWindowNanos = Math.min(unit.toNanos(staleWindow), Long.MAX_VALUE - maxAgeNanos);
+        return new QueryOptions(maxAgeNanos, staleWindowNanos);
+    }
+
+    long getMaxAgeNanos() {
+        return mMaxAgeNanos;
+    }
+
+    long getStaleWhileRevalidateNanos() {
+        return mStaleWhileRevalidateNanos;
+    }
+
+    /** Returns true if results of the given age can be served without waiting for a query. */
+    boolean isUsable(long ageNanos) {
+        return ageNanos < mMaxAgeNanos + mStaleWhileRevalidateNanos;
+    }
+
+    /** Returns true if results of the given age should be refreshed in the background. */
+    boolean isStale(long ageNanos) {
+        return ageNanos >= mMaxAgeNanos;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "QueryOptions{maxAge=" + TimeUnit.NANOSECONDS.toMillis(mMaxAgeNanos) + "ms"
+                + ", staleWhileRevalidate=" + TimeUnit.NANOSECONDS.toMillis(mStaleWhileRevalidateNanos) + "ms}";
+    }
+}
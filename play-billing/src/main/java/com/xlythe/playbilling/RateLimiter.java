@@ -0,0 +1,40 @@
+package com.xlythe.playbilling;
+
+/**
+ * A token bucket. It starts full, each call takes a token, and tokens trickle back in at a fixed
+ * rate. Bursts up to the bucket's capacity are allowed, but sustained calls are held to the refill
+ * rate. Thread safe.
+ */
+final class RateLimiter {
+    private final int mCapacity;
+    private final long mRefillIntervalNanos;
+
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    RateLimiter(int capacity, long refillIntervalNanos) {
+        mCapacity = capacity;
+        mRefillIntervalNanos = refillIntervalNanos;
+        mTokens = capacity;
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    /** Takes a token if there's one available. Returns false if the caller should back off. */
+    synchronized boolean tryAcquire() {
+        refill(System.nanoTime());
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    private void refill(long nowNanos) {
+        long elapsedNanos = nowNanos - mLastRefillNanos;
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        mTokens = Math.min(mCapacity, mTokens + (double) elapsedNanos / mRefillIntervalNanos);
+        mLastRefillNanos = nowNanos;
+    }
+}
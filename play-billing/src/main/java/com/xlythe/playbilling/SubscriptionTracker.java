@@ -0,0 +1,266 @@
+package com.xlythe.playbilling;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetails.PricingPhase;
+import com.android.billingclient.api.ProductDetails.RecurrenceMode;
+import com.android.billingclient.api.ProductDetails.SubscriptionOfferDetails;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of when each active subscription is next expected to renew (or lapse), based on
+ * when it was purchased and the billing periods in its {@link ProductDetails}. A single re-check is
+ * scheduled for the earliest of those times, rather than polling the Play Store on a fixed cadence.
+ *
+ * Only touch from the executor it's given.
+ */
+@WorkerThread
+final class SubscriptionTracker {
+    // How long after an expected renewal to look. The Play Store needs a moment to process it.
+    private static final long RECHECK_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // When we can't work out a renewal time, look again after this long.
+    private static final long FALLBACK_RECHECK_MILLIS = TimeUnit.DAYS.toMillis(1);
+    // When a re-check couldn't reach the Play Store, try again after this long.
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    /** Called when it's time to check whether the given subscriptions are still active. */
+    interface RecheckCallback {
+        void onRecheck(Set<String> productIds);
+    }
+
+    private final ScheduledExecutorService mExecutor;
+    private final RecheckCallback mRecheckCallback;
+
+    // Product ID -> when we next expect it to renew or lapse, in wall clock millis.
+    private final Map<String, Long> mRenewalTimes = new HashMap<>();
+    // How many subscriptions are in mRenewalTimes. Updated whenever that changes, so that it can be
+    // read from any thread.
+    private volatile int mSize;
+
+    @Nullable private ScheduledFuture<?> mRecheckFuture;
+    private long mRecheckTimeMillis = Long.MAX_VALUE;
+
+    SubscriptionTracker(ScheduledExecutorService executor, RecheckCallback recheckCallback) {
+        mExecutor = executor;
+        mRecheckCallback = recheckCallback;
+    }
+
+    /** Starts (or continues) tracking an active subscription. */
+    void track(PurchaseRecord purchase, @Nullable ProductDetails productDetails, long nowMillis) {
+        long renewalTime = nextRenewalTime(purchase.getPurchaseTime(), productDetails, nowMillis);
+        if (renewalTime <= nowMillis) {
+            renewalTime = nowMillis + FALLBACK_RECHECK_MILLIS;
+        }
+        for (String productId : purchase.getProducts()) {
+            mRenewalTimes.put(productId, renewalTime);
+        }
+        mSize = mRenewalTimes.size();
+        reschedule(nowMillis);
+    }
+
+    /** Stops tracking a subscription that's no longer active. */
+    void untrack(String productId, long nowMillis) {
+        if (mRenewalTimes.remove(productId) != null) {
+            mSize = mRenewalTimes.size();
+            reschedule(nowMillis);
+        }
+    }
+
+    /** Checks on the given subscriptions again later, after a re-check failed. */
+    void postpone(Set<String> productIds, long nowMillis) {
+        for (String productId : productIds) {
+            if (mRenewalTimes.containsKey(productId)) {
+                mRenewalTimes.put(productId, nowMillis + RETRY_DELAY_MILLIS);
+            }
+        }
+        reschedule(nowMillis);
+    }
+
+    boolean isTracking(String productId) {
+        return mRenewalTimes.containsKey(productId);
+    }
+
+    /** Safe to call from any thread. */
+    int size() {
+        return mSize;
+    }
+
+    /** A copy of the subscriptions being tracked, safe to iterate while untracking. */
+    Set<String> getTrackedProductIds() {
+        return new HashSet<>(mRenewalTimes.keySet());
+    }
+
+    /** When the next re-check will run, or {@link Long#MAX_VALUE} if none is scheduled. */
+    long getNextRecheckTimeMillis() {
+        return mRecheckTimeMillis;
+    }
+
+    void cancel() {
+        mRenewalTimes.clear();
+        mSize = 0;
+        if (mRecheckFuture != null) {
+            mRecheckFuture.cancel(false);
+            mRecheckFuture = null;
+        }
+        mRecheckTimeMillis = Long.MAX_VALUE;
+    }
+
+    private void reschedule(long nowMillis) {
+        long earliest = Long.MAX_VALUE;
+        for (long renewalTime : mRenewalTimes.values()) {
+            earliest = Math.min(earliest, renewalTime);
+        }
+        if (earliest == Long.MAX_VALUE) {
+            cancel();
+            return;
+        }
+
+        long recheckTime = earliest + RECHECK_DELAY_MILLIS;
+        if (recheckTime == mRecheckTimeMillis && mRecheckFuture != null) {
+            return;
+        }
+        if (mRecheckFuture != null) {
+            mRecheckFuture.cancel(false);
+        }
+        mRecheckTimeMillis = recheckTime;
+        mRecheckFuture = mExecutor.schedule(this::onRecheckDue, Math.max(RECHECK_DELAY_MILLIS, recheckTime - nowMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private void onRecheckDue() {
+        mRecheckFuture = null;
+        mRecheckTimeMillis = Long.MAX_VALUE;
+
+        // Everything that was due by now. Anything still active will be tracked again with its next renewal.
+        long nowMillis = System.currentTimeMillis();
+        Set<String> dueProductIds = new HashSet<>();
+        for (Map.Entry<String, Long> entry : mRenewalTimes.entrySet()) {
+            if (entry.getValue() + RECHECK_DELAY_MILLIS <= nowMillis) {
+                dueProductIds.add(entry.getKey());
+            }
+        }
+        if (dueProductIds.isEmpty()) {
+            reschedule(nowMillis);
+            return;
+        }
+        mRecheckCallback.onRecheck(dueProductIds);
+
+        // The re-check normally tracks, untracks or postpones each of them. Anything it left alone
+        // is still due, and without a recheck scheduled it would never be looked at again.
+        long recheckedMillis = System.currentTimeMillis();
+        for (String productId : dueProductIds) {
+            Long renewalTime = mRenewalTimes.get(productId);
+            if (renewalTime != null && renewalTime + RECHECK_DELAY_MILLIS <= nowMillis) {
+                mRenewalTimes.put(productId, recheckedMillis + FALLBACK_RECHECK_MILLIS);
+            }
+        }
+        reschedule(recheckedMillis);
+    }
+
+    /**
+     * The first billing period boundary after now. The purchase doesn't say which offer the user
+     * took, so every offer is considered and the earliest boundary wins. Checking early only costs a
+     * cheap query, while checking late would leave a lapsed subscription active.
+     */
+    static long nextRenewalTime(long purchaseTimeMillis, @Nullable ProductDetails productDetails, long nowMillis) {
+        if (productDetails == null || productDetails.getSubscriptionOfferDetails() == null) {
+            return -1;
+        }
+
+        long earliest = Long.MAX_VALUE;
+        for (SubscriptionOfferDetails offer : productDetails.getSubscriptionOfferDetails()) {
+            long renewalTime = nextRenewalTime(purchaseTimeMillis, offer, nowMillis);
+            if (renewalTime > nowMillis) {
+                earliest = Math.min(earliest, renewalTime);
+            }
+        }
+        return earliest == Long.MAX_VALUE ? -1 : earliest;
+    }
+
+    private static long nextRenewalTime(long purchaseTimeMillis, SubscriptionOfferDetails offer, long nowMillis) {
+        long time = purchaseTimeMillis;
+        for (PricingPhase phase : offer.getPricingPhases().getPricingPhaseList()) {
+            BillingPeriod period = BillingPeriod.parse(phase.getBillingPeriod());
+            if (period == null) {
+                return -1;
+            }
+
+            int cycles;
+            switch (phase.getRecurrenceMode()) {
+                case RecurrenceMode.FINITE_RECURRING:
+                    cycles = phase.getBillingCycleCount();
+                    break;
+                case RecurrenceMode.NON_RECURRING:
+                    cycles = 1;
+                    break;
+                default:
+                    cycles = Integer.MAX_VALUE;
+                    break;
+            }
+            for (int i = 0; i < cycles; i++) {
+                time = period.addTo(time);
+                if (time > nowMillis) {
+                    return time;
+                }
+            }
+        }
+        return time;
+    }
+
+    /** An ISO 8601 duration, as used for billing periods (eg. P1W, P1M, P1Y). */
+    static final class BillingPeriod {
+        private static final Pattern PATTERN = Pattern.compile("P(?:(\\d+)Y)?(?:(\\d+)M)?(?:(\\d+)W)?(?:(\\d+)D)?");
+
+        final int years;
+        final int months;
+        final int days;
+
+        private BillingPeriod(int years, int months, int days) {
+            this.years = years;
+            this.months = months;
+            this.days = days;
+        }
+
+        @Nullable
+        static BillingPeriod parse(@Nullable String period) {
+            if (period == null) {
+                return null;
+            }
+            Matcher matcher = PATTERN.matcher(period);
+            if (!matcher.matches()) {
+                return null;
+            }
+            BillingPeriod billingPeriod = new BillingPeriod(
+                    group(matcher, 1),
+                    group(matcher, 2),
+                    group(matcher, 3) * 7 + group(matcher, 4));
+            return billingPeriod.years + billingPeriod.months + billingPeriod.days > 0 ? billingPeriod : null;
+        }
+
+        long addTo(long timeMillis) {
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(timeMillis);
+            calendar.add(Calendar.YEAR, years);
+            calendar.add(Calendar.MONTH, months);
+            calendar.add(Calendar.DAY_OF_MONTH, days);
+            return calendar.getTimeInMillis();
+        }
+
+        private static int group(Matcher matcher, int group) {
+            String value = matcher.group(group);
+            return value == null ? 0 : Integer.parseInt(value);
+        }
+    }
+}
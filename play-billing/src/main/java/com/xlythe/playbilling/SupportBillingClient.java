@@ -1,18 +1,20 @@
 package com.xlythe.playbilling;
 
 import android.app.Activity;
+import android.content.Context;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.MainThread;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 import androidx.collection.ArraySet;
+import androidx.core.content.ContextCompat;
 
-import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
 import com.android.billingclient.api.BillingClient;
 import com.android.billingclient.api.BillingClient.ProductType;
 import com.android.billingclient.api.BillingClient.BillingResponseCode;
-import com.android.billingclient.api.BillingClientStateListener;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingFlowParams.ProductDetailsParams;
 import com.android.billingclient.api.BillingResult;
@@ -21,149 +23,696 @@ import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.PurchaseHistoryRecord;
 import com.android.billingclient.api.PurchaseHistoryResponseListener;
 import com.android.billingclient.api.PurchasesResponseListener;
-import com.android.billingclient.api.QueryProductDetailsParams;
-import com.android.billingclient.api.QueryPurchaseHistoryParams;
-import com.android.billingclient.api.QueryPurchasesParams;
-import com.android.vending.billing.util.Security;
+import com.android.vending.billing.util.SignatureVerifier;
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.Status;
+import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
 import org.json.JSONException;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 /**
  * A wrapper around Google's {@link BillingClient} that simplifies the purchase flow. To get an
- * instance, call {@link SupportBillingClient#getInstance(Activity, String)}, passing in the API key
+ * instance, call {@link SupportBillingClient#getInstance(Context, String)}, passing in the API key
  * you got from the Google Play Console.
  *
+ * The client is scoped to the Application, so its connection, product details and the user's
+ * entitlements survive rotation and moving between Activities. Getting an instance is cheap. The
+ * BillingClient itself is built on a background thread, and any calls made before it's ready are
+ * queued behind it. To connect even earlier, declare your API key in your manifest and
+ * {@link SupportBillingClientInitializer} will connect on app startup.
+ *
  * Listen to purchases (and refunds) by calling {@link SupportBillingClient#registerPurchaseListener(List, PurchaseListener)}.
- * Purchase an item by calling {@link SupportBillingClient#purchaseItem(String)}.
+ * Purchase an item by calling {@link SupportBillingClient#purchaseItem(Activity, String)}.
+ * Subscriptions are checked on again around when they're due to renew, so a lapse is reported
+ * through {@link PurchaseListener#onPurchaseLost(String)} without any polling.
  */
 public class SupportBillingClient {
-    private static final String TAG = "PlayBilling";
+    // Only one restore is ever owed, for the products most recently asked about. This is its key in the journal.
+    private static final String RESTORE_KEY = "";
+    // How the products of a journaled restore are written down. TextUtils isn't used, as it's
+    // stubbed out on the host JVM the benchmarks run on.
+    private static final Joiner PRODUCT_ID_JOINER = Joiner.on(',');
+    private static final Splitter PRODUCT_ID_SPLITTER = Splitter.on(',').omitEmptyStrings();
 
+    // The application's clients, one per API key. They all share sBillingConnection.
+    private static final Map<String, SupportBillingClient> sBillingClients = new HashMap<>();
     @Nullable
-    private static WeakReference<SupportBillingClient> sBillingClient;
+    private static BillingConnection sBillingConnection;
+
+    // Creates the backend that new clients talk to. Defaults to the Play Store.
+    private static BillingBackend.Factory sBillingBackendFactory = PlayBillingBackend::new;
 
+    /**
+     * Returns the application's client, remembering the Activity for {@link #purchaseItem(String)}.
+     * Prefer {@link #getInstance(Context, String)} and {@link #purchaseItem(Activity, String)}.
+     */
     public static synchronized SupportBillingClient getInstance(Activity activity, String apiKey) {
-        SupportBillingClient billingClient = sBillingClient != null ? sBillingClient.get() : null;
+        SupportBillingClient billingClient = getInstance((Context) activity, apiKey);
+        billingClient.mActivity = new WeakReference<>(activity);
+        return billingClient;
+    }
+
+    /**
+     * Returns the application's client for the given API key. It lives as long as the process, so
+     * it's safe to call this again from every Activity.
+     *
+     * Apps that verify purchases against several keys get one client per key. Each verifies with
+     * its own key, but they all share a single connection to the Play Store.
+     */
+    public static synchronized SupportBillingClient getInstance(Context context, String apiKey) {
+        SupportBillingClient billingClient = sBillingClients.get(apiKey);
         if (billingClient == null) {
-            billingClient = new SupportBillingClient(activity, apiKey);
-            sBillingClient = new WeakReference<>(billingClient);
+            Context applicationContext = context.getApplicationContext();
+            if (sBillingConnection == null) {
+                sBillingConnection = new BillingConnection(applicationContext, sBillingBackendFactory);
+            }
+            billingClient = new SupportBillingClient(applicationContext, apiKey, sBillingConnection, ContextCompat.getMainExecutor(applicationContext));
+            sBillingClients.put(apiKey, billingClient);
         }
         return billingClient;
     }
 
+    /**
+     * Replaces the backend that clients talk to, such as with the FakeBillingBackend from the
+     * play-billing-testing module for offline testing. Pass null to go back to the Play Store.
+     * Existing clients are shut down, and anything still waiting on them fails. Call
+     * {@link #getInstance(Context, String)} again for a client on the new backend.
+     */
+    public static synchronized void setBillingBackendFactory(@Nullable BillingBackend.Factory factory) {
+        sBillingBackendFactory = factory != null ? factory : PlayBillingBackend::new;
+        for (SupportBillingClient billingClient : sBillingClients.values()) {
+            billingClient.shutdown();
+        }
+        sBillingClients.clear();
+        if (sBillingConnection != null) {
+            sBillingConnection.shutdown();
+            sBillingConnection = null;
+        }
+    }
+
+    /**
+     * Sends the library's logs somewhere other than logcat, or pass {@link BillingLogger#NO_OP} to
+     * drop them. Pass null to go back to logcat, where debug logs are only written if
+     * {@code adb shell setprop log.tag.PlayBilling DEBUG} has been run.
+     */
+    public static void setLogger(@Nullable BillingLogger logger) {
+        BillingLog.setLogger(logger != null ? logger : BillingLogger.LOGCAT);
+    }
+
     public interface PurchaseListener {
+        /**
+         * The user owns the purchase, and its signature has been verified against our API key. The
+         * purchase carries the JSON and signature as the Play Store sent them, unless
+         * {@link SupportBillingClient#setRetainPurchaseJson(boolean)} was turned off. In that case a
+         * purchase we'd already seen has an empty signature.
+         */
         default void onPurchaseFound(Purchase purchase) {}
         default void onPurchaseLost(String productId) {}
-    }
 
-    private enum ServiceConnectionState {
-        DISCONNECTED, CONNECTING, CONNECTED
+        /**
+         * The user has started a purchase but hasn't paid for it yet (eg. with a cash code). The
+         * product is not unlocked, and {@link #onPurchaseLost(String)} is still called for it.
+         */
+        default void onPurchasePending(Purchase purchase) {}
+
+        /**
+         * A purchase that was pending has now been paid for. Called just before
+         * {@link #onPurchaseFound(Purchase)}.
+         */
+        default void onPendingPurchaseCompleted(Purchase purchase) {}
     }
 
-    // The context of our caller.
-    private final Activity mActivity;
+    // The most recent Activity given to getInstance. Only used by the deprecated purchaseItem overloads.
+    private volatile WeakReference<Activity> mActivity = new WeakReference<>(null);
+    // The application context. Null when benchmarking without one.
+    @Nullable private final Context mContext;
     // The API key of our caller.
     private final String mApiKey;
-    // The BillingClient used to talk to the Play Store.
-    private final BillingClient mBillingClient;
-    // Listener that the client may register to be notified about purchases.
-    private final Set<PurchaseListener> mPurchaseListeners = new ArraySet<>();
-    // An executor to run tasks on the background.
-    private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadPoolExecutor.DiscardPolicy());
-
-    // The state of our connection to the Play Store.
-    private volatile ServiceConnectionState mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
-    // A task that's scheduled in the future to disconnect from the Play Store when we're no longer interested.
-    private final Runnable mDisconnectTask = this::attemptToDisconnect;
-
-    private SupportBillingClient(Activity activity, String apiKey) {
-        this.mActivity = activity;
+    // The connection to the Play Store. Shared with clients for other API keys.
+    private final BillingConnection mConnection;
+    // True if this client created mConnection for itself, and so should shut it down.
+    private final boolean mOwnsConnection;
+    // How mConnection reaches us.
+    private final BillingConnection.Client mConnectionClient = new BillingConnection.Client() {
+        @Override
+        public void onPurchasesUpdated(BillingResult billingResult, List<Purchase> purchases) {
+            if (billingResult.getResponseCode() != BillingResponseCode.OK) {
+                onPurchaseFlowFailed(billingResult);
+                return;
+            }
+
+            for (Purchase purchase : purchases) {
+                PurchaseRecord record = PurchaseRecord.of(purchase);
+                onPurchaseFound(record, removePurchaseSession(record));
+                // Only subscriptions renew, so that's how we tell a new subscription apart.
+                if (record.isAutoRenewing()) {
+                    trackSubscription(record);
+                }
+            }
+            commitEntitlements();
+        }
+
+        @Override
+        public boolean isInUse() {
+            return !mPurchaseListeners.isEmpty();
+        }
+
+        @Override
+        public boolean verifies(PurchaseRecord purchase) {
+            return verify(purchase);
+        }
+
+        @Override
+        public void onConnected() {
+            mOperationJournal.replayNow();
+        }
+    };
+    // Where listeners are called back. This is the UI thread.
+    private final Executor mCallbackExecutor;
+    // The Tasks and sessions callers are waiting on, and how to fail each one. Once we're shut down
+    // nothing else will complete them, so they're failed with mShutdownException instead.
+    private final Map<Task<?>, OnFailureListener> mOutstanding = new ConcurrentHashMap<>();
+    // Null until we're shut down.
+    @Nullable private volatile IllegalStateException mShutdownException;
+    // Listeners that the client may register to be notified about purchases. Registered from any
+    // thread and iterated on mExecutor, so it's copied on write.
+    private final Set<PurchaseListener> mPurchaseListeners = new CopyOnWriteArraySet<>();
+    // Caps how much heap our caches, and the purchases we keep, may hold.
+    private final MemoryBudget mMemoryBudget;
+    // Product details we've already looked up, keyed by type and product ID. Held to mMemoryBudget.
+    private final MemoryBudget.Cache<String, ProductDetails> mProductDetailsCache;
+    // True to keep the signed JSON of the purchases in mEntitlements, rather than dropping it once verified.
+    private volatile boolean mRetainPurchaseJson = true;
+    // Purchase dialogs we've launched and haven't heard back from, keyed by product ID. Only touch from mExecutor.
+    private final Map<String, PurchaseSession> mPurchaseSessions = new LinkedHashMap<>();
+    // The size of mPurchaseSessions, updated whenever it changes, for getDiagnostics.
+    private volatile int mPurchaseSessionCount;
+    // The verified purchases the user currently owns, keyed by product ID. Only touch from mExecutor.
+    private final Map<String, PurchaseRecord> mEntitlements = new HashMap<>();
+    // Purchases that have already passed signature verification.
+    private final VerifiedPurchaseCache mVerifiedPurchaseCache;
+    // Checks purchase signatures against our API key. Created on first use, as decoding the key isn't free.
+    @Nullable private SignatureVerifier mSignatureVerifier;
+    // The algorithm purchases are signed with.
+    private volatile SignatureVerifier.Algorithm mSignatureAlgorithm = SignatureVerifier.Algorithm.SHA1_WITH_RSA;
+    // An executor to run tasks on the background. Owned by mConnection.
+    private final ScheduledThreadPoolExecutor mExecutor;
+    // Knows when each subscription should next renew, and checks on it then. Only touch from mExecutor.
+    private final SubscriptionTracker mSubscriptionTracker;
+    // Purchases that are waiting on payment, which we check back on. Only touch from mExecutor.
+    private final PendingPurchaseTracker mPendingPurchaseTracker;
+    // Acknowledgements and restores that are owed to the Play Store, kept until they succeed. Only touch from mExecutor.
+    private final OperationJournal mOperationJournal;
+    // Acknowledgements in flight, keyed by purchase token. Only touch from mExecutor.
+    private final Map<String, Task<BillingResult>> mAcknowledging = new HashMap<>();
+    // The size of mAcknowledging, updated whenever it changes, for getDiagnostics.
+    private volatile int mAcknowledgingCount;
+    // True while a restore from mOperationJournal is in flight. Only touch from mExecutor.
+    private boolean mReplayingRestore;
+    // Gives each product a bit in mEntitledProducts.
+    private final ProductIndex mProductIndex = new ProductIndex();
+    // A bitset of the products in mEntitlements, as of the last completed query. Never modified,
+    // only replaced, so it can be read from any thread without locking.
+    private volatile long[] mEntitledProducts = new long[0];
+    // The entitlements as of the last completed query. Empty until the first query completes.
+    private final Observable<EntitlementSnapshot> mEntitlementSnapshots = new Observable<>();
+    // The entitlements we last published for other processes. Only touch from mExecutor.
+    @Nullable private EntitlementSnapshot mPublishedSnapshot;
+    // When purchases were last read from the Play Store, in System.nanoTime. Null if they never were.
+    // Only written from mExecutor, but read from anywhere by getDiagnostics.
+    @Nullable private volatile Long mLastQueryNanos;
+    // When each product was last read from the Play Store, in System.nanoTime. Only touch from mExecutor.
+    private final Map<String, Long> mProductQueryNanos = new HashMap<>();
+    // The query that's running, if any, and the products it covers. Only written from mExecutor, but
+    // mQueryInFlight is read from anywhere by getDiagnostics.
+    @Nullable private volatile Task<BillingResult> mQueryInFlight;
+    private Set<String> mQueryInFlightProductIds = Collections.emptySet();
+
+    // A client with a connection of its own, for benchmarks.
+    @VisibleForTesting
+    SupportBillingClient(@Nullable Context context, String apiKey, BillingBackend.Factory backendFactory, Executor callbackExecutor) {
+        // Benchmarks call in a tight loop, so rate limiting is off.
+        this(context, apiKey, new BillingConnection(context, backendFactory, false), true, callbackExecutor);
+    }
+
+    SupportBillingClient(@Nullable Context context, String apiKey, BillingConnection connection, Executor callbackExecutor) {
+        this(context, apiKey, connection, false, callbackExecutor);
+    }
+
+    private SupportBillingClient(@Nullable Context context, String apiKey, BillingConnection connection, boolean ownsConnection, Executor callbackExecutor) {
+        this.mContext = context;
         this.mApiKey = apiKey;
-        this.mBillingClient = BillingClient.newBuilder(activity)
-                .enablePendingPurchases()
-                .setListener((billingResult, purchases) -> {
-                    if (billingResult.getResponseCode() != BillingResponseCode.OK) {
-                        Log.w(TAG, "Attempted to purchase an item, but received error: " + toString(billingResult));
-                        return;
-                    }
+        this.mConnection = connection;
+        this.mOwnsConnection = ownsConnection;
+        this.mExecutor = connection.getExecutor();
+        this.mCallbackExecutor = callbackExecutor;
+        this.mVerifiedPurchaseCache = new VerifiedPurchaseCache(context, apiKey);
+        this.mMemoryBudget = MemoryBudget.forDevice(context);
+        this.mProductDetailsCache = mMemoryBudget.newCache("productDetails", SupportBillingClient::estimateBytes);
+        this.mSubscriptionTracker = new SubscriptionTracker(mExecutor, this::recheckSubscriptions);
+        this.mPendingPurchaseTracker = new PendingPurchaseTracker(context, EntitlementStore.sectionOf(apiKey), mExecutor, this::recheckPendingPurchases);
+        this.mOperationJournal = new OperationJournal(context, EntitlementStore.sectionOf(apiKey), mExecutor, this::replayOperationJournal);
+        mConnection.addClient(mConnectionClient);
+        mExecutor.execute(mPendingPurchaseTracker::load);
+        mExecutor.execute(mOperationJournal::load);
+    }
 
-                    if (purchases != null) {
-                        for (Purchase purchase : purchases) {
-                            onPurchaseFound(purchase);
-                        }
-                    }
-                })
-                .build();
+    @WorkerThread
+    private BillingBackend getBackend() {
+        return mConnection.getBackend();
     }
 
-    private void onPurchaseFound(Purchase purchase) {
-        if (!Security.verifyPurchase(mApiKey, purchase.getOriginalJson(), purchase.getSignature())) {
-            Log.w(TAG, "Failed to verify purchase " + purchase + ". Ignoring.");
+    /**
+     * Remember purchases that have passed signature verification across app restarts, so that they
+     * aren't verified again on every launch. What's remembered is keyed with the Android Keystore,
+     * so it can't be forged. Off by default, and ignored before API 23.
+     */
+    public void setPersistVerifiedPurchases(boolean persist) {
+        mExecutor.execute(() -> mVerifiedPurchaseCache.setPersistent(persist));
+    }
+
+    /**
+     * Sets the algorithm purchases are signed with. The Play Store uses SHA1withRSA, which is the
+     * default, but receipts re-signed by your own server may use SHA256withRSA.
+     */
+    public void setSignatureAlgorithm(SignatureVerifier.Algorithm algorithm) {
+        mSignatureAlgorithm = algorithm;
+    }
+
+    /**
+     * Whether to keep the signed JSON of the purchases the user owns. On by default. Turning it off
+     * saves memory when the user owns many purchases, as the JSON is dropped once a purchase is
+     * verified. But a {@link Purchase} that's handed out after that (to a listener that registers
+     * later, or when purchases are reported again) is rebuilt from what we kept. Its
+     * {@link Purchase#getOriginalJson()} is not what the Play Store signed, and its
+     * {@link Purchase#getSignature()} is empty. Leave this on if you send purchases to a server to
+     * be verified.
+     */
+    public void setRetainPurchaseJson(boolean retain) {
+        mRetainPurchaseJson = retain;
+    }
+
+    /**
+     * Caps how much heap the client's caches may hold, in bytes. Defaults to 256KB, or 64KB on low
+     * RAM devices. What the user owns is always kept, but counts against the cap.
+     */
+    public void setMemoryBudget(long bytes) {
+        mMemoryBudget.setBudgetBytes(bytes);
+    }
+
+    /** Describes how much heap the client's caches hold, against its memory budget. For debugging. */
+    public String getMemoryReport() {
+        return mMemoryBudget.getReport();
+    }
+
+    /**
+     * A snapshot of what the client is up to: the connection, the background thread, what's in
+     * flight and when purchases were last read. Doesn't take any locks or wait on the background
+     * thread, so it's safe to call from anywhere, as often as a watchdog needs to.
+     */
+    public BillingDiagnostics getDiagnostics() {
+        // Every value here is a volatile that's written wherever it changes, so each one is current.
+        // They're read one after another though, so they may not agree with each other.
+        BillingDiagnostics.ClientState clientState = new BillingDiagnostics.ClientState(
+                mPurchaseSessionCount,
+                mAcknowledgingCount,
+                mOperationJournal.size(),
+                mPendingPurchaseTracker.size(),
+                mSubscriptionTracker.size(),
+                mQueryInFlight != null,
+                mLastQueryNanos,
+                mMemoryBudget.getUsedBytes(),
+                mMemoryBudget.getBudgetBytes());
+        EntitlementSnapshot entitlements = mEntitlementSnapshots.getValue();
+        return new BillingDiagnostics(mConnection, clientState, mPurchaseListeners.size(), entitlements != null ? entitlements : EntitlementSnapshot.EMPTY);
+    }
+
+    /** Writes {@link #getDiagnostics()}, such as from {@link Activity#dump}, for {@code adb shell dumpsys activity}. */
+    public void dump(PrintWriter writer) {
+        dump("", writer);
+    }
+
+    /** Like {@link #dump(PrintWriter)}, but starts every line with the prefix, as {@link Activity#dump} asks. */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("SupportBillingClient");
+        getDiagnostics().dump(prefix, writer);
+    }
+
+    // Roughly how much heap a ProductDetails holds. Subscriptions are the bulk of it, with an
+    // object per offer and per pricing phase.
+    private static long estimateBytes(ProductDetails productDetails) {
+        long bytes = 256 + 2L * (productDetails.getProductId().length()
+                + productDetails.getName().length()
+                + productDetails.getTitle().length()
+                + productDetails.getDescription().length());
+        if (productDetails.getOneTimePurchaseOfferDetails() != null) {
+            bytes += 128;
+        }
+        List<ProductDetails.SubscriptionOfferDetails> offers = productDetails.getSubscriptionOfferDetails();
+        if (offers != null) {
+            for (ProductDetails.SubscriptionOfferDetails offer : offers) {
+                bytes += 256 + 192L * offer.getPricingPhases().getPricingPhaseList().size();
+            }
+        }
+        // The raw JSON is kept too, and is about as big as everything parsed out of it.
+        return 2 * bytes;
+    }
+
+    // Checks the purchase's signature, skipping the RSA verification if we've seen this exact purchase before.
+    @WorkerThread
+    private boolean verify(PurchaseRecord purchase) {
+        if (mVerifiedPurchaseCache.isVerified(purchase.getPurchaseToken(), purchase.getOriginalJson(), purchase.getSignature())) {
+            return true;
+        }
+
+        SignatureVerifier signatureVerifier = mSignatureVerifier;
+        if (signatureVerifier == null || signatureVerifier.getAlgorithm() != mSignatureAlgorithm) {
+            signatureVerifier = new SignatureVerifier(mApiKey, mSignatureAlgorithm);
+            mSignatureVerifier = signatureVerifier;
+        }
+        SignatureVerifier.Result result = signatureVerifier.verify(purchase.getOriginalJson(), purchase.getSignature());
+        if (!result.isVerified()) {
+            BillingLog.w(() -> "Signature verification failed: " + result);
+            return false;
+        }
+
+        mVerifiedPurchaseCache.putVerified(purchase.getPurchaseToken(), purchase.getOriginalJson(), purchase.getSignature());
+        return true;
+    }
+
+    @WorkerThread
+    private void onPurchaseFound(PurchaseRecord purchase) {
+        onPurchaseFound(purchase, null);
+    }
+
+    // Reports a purchase. If it came out of a purchase dialog we launched, the session is completed too.
+    @WorkerThread
+    private void onPurchaseFound(PurchaseRecord purchase, @Nullable PurchaseSession session) {
+        if (session != null) {
+            session.end(PurchaseSession.Phase.USER_DECISION);
+            session.begin(PurchaseSession.Phase.VERIFY);
+        }
+        boolean verified = verify(purchase);
+        if (session != null) {
+            session.end(PurchaseSession.Phase.VERIFY);
+        }
+        if (!verified && mConnection.isVerifiedByAnotherClient(mConnectionClient, purchase)) {
+            // Signed with the API key of another client sharing the connection. It's theirs to
+            // report, and our own session (if any) is still waiting on our purchase.
+            if (session != null) {
+                mPurchaseSessions.put(session.getProductId(), session);
+                mPurchaseSessionCount = mPurchaseSessions.size();
+            }
+            return;
+        }
+        if (!verified) {
+            BillingLog.w(() -> "Failed to verify purchase " + purchase + ". Ignoring.");
+            if (session != null) {
+                session.onFailed(new GeneralSecurityException("The purchase's signature did not match our API key"));
+            }
             for (String productId : purchase.getProducts()) {
                 onPurchaseLost(productId);
             }
             return;
         }
 
-
         if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
-            Log.w(TAG, "Purchase " + purchase + " has not been paid for yet. Ignoring.");
+            BillingLog.w(() -> "Purchase " + purchase + " has not been paid for yet. Watching for it to complete.");
+            mPendingPurchaseTracker.add(purchase);
+            Purchase listenerPurchase = purchase.toPurchase();
+            for (PurchaseListener l : mPurchaseListeners) {
+                mCallbackExecutor.execute(() -> l.onPurchasePending(listenerPurchase));
+            }
             for (String productId : purchase.getProducts()) {
                 onPurchaseLost(productId);
             }
+            if (session != null) {
+                session.onPurchased(listenerPurchase);
+            }
             return;
         }
 
-        Log.d(TAG, "User purchased " + purchase);
-        if (!purchase.isAcknowledged()) {
-            AcknowledgePurchaseParams acknowledgePurchaseParams =
-                    AcknowledgePurchaseParams.newBuilder()
-                            .setPurchaseToken(purchase.getPurchaseToken())
-                            .build();
+        boolean wasPending = mPendingPurchaseTracker.remove(purchase.getPurchaseToken());
+        if (BillingLog.isLoggable(Log.DEBUG)) {
+            BillingLog.d("User purchased " + purchase);
+        }
 
-            mBillingClient.acknowledgePurchase(acknowledgePurchaseParams, (billingResult) -> {
-                if (billingResult.getResponseCode() != BillingResponseCode.OK) {
-                    Log.w(TAG, "Failed to acknowledge purchase: " + toString(billingResult)
-                            + ". The purchase will continue to work but may be refunded in the future.");
-                    return;
+        // Built before the record is compacted, while it still has the signed JSON.
+        Purchase listenerPurchase = session != null || !mPurchaseListeners.isEmpty() ? purchase.toPurchase() : null;
+        if (!purchase.isAcknowledged()) {
+            if (session != null) {
+                session.begin(PurchaseSession.Phase.ACKNOWLEDGE);
+            }
+            acknowledgePurchase(purchase.getPurchaseToken(), session == null ? null : (billingResult) -> {
+                session.end(PurchaseSession.Phase.ACKNOWLEDGE);
+                switch (billingResult.getResponseCode()) {
+                    case BillingResponseCode.ITEM_NOT_OWNED:
+                    case BillingResponseCode.DEVELOPER_ERROR:
+                        // It won't be retried, and the Play Store will refund it.
+                        session.onFailed(new ApiException(new Status(billingResult.getResponseCode(), "Unable to acknowledge the purchase: " + toString(billingResult))));
+                        BillingLog.d(() -> "Purchase failed: " + session);
+                        break;
+                    default:
+                        // Anything else is retried from the journal, so the purchase stands.
+                        session.onPurchased(listenerPurchase);
+                        BillingLog.d(() -> "Purchase completed: " + session);
+                        break;
                 }
-
-                Log.w(TAG, "Acknowledged purchase " + purchase);
             });
+        } else if (session != null) {
+            session.onPurchased(listenerPurchase);
+            BillingLog.d(() -> "Purchase completed: " + session);
+        }
+
+        purchase.compact(mProductIndex, mRetainPurchaseJson);
+        for (String productId : purchase.getProducts()) {
+            mEntitlements.put(productId, purchase);
         }
+        if (listenerPurchase == null || mPurchaseListeners.isEmpty()) {
+            return;
+        }
+
         for (PurchaseListener l : mPurchaseListeners) {
-            mActivity.runOnUiThread(() -> l.onPurchaseFound(purchase));
+            mCallbackExecutor.execute(() -> {
+                if (wasPending) {
+                    l.onPendingPurchaseCompleted(listenerPurchase);
+                }
+                l.onPurchaseFound(listenerPurchase);
+            });
         }
     }
 
+    // Acknowledges a purchase, so that it isn't refunded. It's journaled first, and if the Play
+    // Store can't be reached it's retried once it can. The Task completes once the Play Store answers.
+    // If the purchase is already being acknowledged, that acknowledgement is shared rather than sent again.
+    @WorkerThread
+    private Task<BillingResult> acknowledgePurchase(String purchaseToken, @Nullable AcknowledgePurchaseResponseListener listener) {
+        Task<BillingResult> inFlight = mAcknowledging.get(purchaseToken);
+        if (inFlight != null) {
+            if (listener != null) {
+                inFlight.addOnSuccessListener(mExecutor, listener::onAcknowledgePurchaseResponse);
+            }
+            return inFlight;
+        }
+
+        mOperationJournal.enqueue(OperationJournal.Type.ACKNOWLEDGE, purchaseToken, "");
+        TaskCompletionSource<BillingResult> taskCompletionSource = newTaskCompletionSource();
+        mAcknowledging.put(purchaseToken, taskCompletionSource.getTask());
+        mAcknowledgingCount = mAcknowledging.size();
+        getBackend().acknowledgePurchase(purchaseToken, (billingResult) -> mExecutor.execute(() -> {
+            mAcknowledging.remove(purchaseToken);
+            mAcknowledgingCount = mAcknowledging.size();
+            taskCompletionSource.trySetResult(billingResult);
+            mConnection.recordResult(billingResult);
+            if (listener != null) {
+                listener.onAcknowledgePurchaseResponse(billingResult);
+            }
+            switch (billingResult.getResponseCode()) {
+                case BillingResponseCode.OK:
+                    BillingLog.d(() -> "Acknowledged purchase " + purchaseToken);
+                    mOperationJournal.complete(OperationJournal.Type.ACKNOWLEDGE, purchaseToken);
+                    break;
+                case BillingResponseCode.ITEM_NOT_OWNED:
+                case BillingResponseCode.DEVELOPER_ERROR:
+                    // The purchase is gone (eg. refunded), or the token is bad. Retrying won't help.
+                    BillingLog.w(() -> "Unable to acknowledge purchase " + purchaseToken + ": " + toString(billingResult));
+                    mOperationJournal.complete(OperationJournal.Type.ACKNOWLEDGE, purchaseToken);
+                    break;
+                default:
+                    BillingLog.w(() -> "Failed to acknowledge purchase: " + toString(billingResult) + ". Trying again later.");
+                    mOperationJournal.onReplayFailed();
+                    break;
+            }
+        }));
+        return taskCompletionSource.getTask();
+    }
+
+    // Sends every journaled acknowledgement that isn't already in flight. The Tasks complete once
+    // the Play Store has answered all of them, including the ones that were in flight.
+    @WorkerThread
+    private List<Task<BillingResult>> drainAcknowledgements() {
+        List<Task<BillingResult>> acknowledgements = new ArrayList<>();
+        for (String purchaseToken : mOperationJournal.getOperations(OperationJournal.Type.ACKNOWLEDGE).keySet()) {
+            acknowledgements.add(acknowledgePurchase(purchaseToken, null));
+        }
+        return acknowledgements;
+    }
+
+    // Called by mOperationJournal once the connection is back, or after a backoff. Retries what
+    // failed before.
+    @WorkerThread
+    private void replayOperationJournal() {
+        if (mOperationJournal.isEmpty()) {
+            return;
+        }
+
+        try {
+            ensureConnected();
+        } catch (Exception e) {
+            BillingLog.w("Unable to replay the operation journal. Trying again later.", e);
+            mOperationJournal.onReplayFailed();
+            return;
+        }
+
+        drainAcknowledgements();
+
+        String payload = mOperationJournal.get(OperationJournal.Type.RESTORE, RESTORE_KEY);
+        if (payload == null || mReplayingRestore) {
+            return;
+        }
+        List<String> productIds = PRODUCT_ID_SPLITTER.splitToList(payload);
+        if (productIds.isEmpty()) {
+            // Nothing we can restore. Drop it rather than retrying it forever.
+            mOperationJournal.complete(OperationJournal.Type.RESTORE, RESTORE_KEY);
+            return;
+        }
+        mReplayingRestore = true;
+        // If it fails, queryPurchases journals it again and backs off.
+        queryPurchases(productIds).addOnCompleteListener(mExecutor, task -> mReplayingRestore = false);
+    }
+
+    // Makes the current entitlements visible to isEntitled and to other processes, all at once.
+    @WorkerThread
+    private void commitEntitlements() {
+        // Each record is counted once, under its first product.
+        long entitlementBytes = 0;
+        for (Map.Entry<String, PurchaseRecord> entry : mEntitlements.entrySet()) {
+            if (entry.getKey().equals(entry.getValue().getProducts().get(0))) {
+                entitlementBytes += entry.getValue().estimateBytes();
+            }
+        }
+        mMemoryBudget.setPinnedBytes(entitlementBytes);
+
+        Set<String> productIds = new ArraySet<>(mEntitlements.keySet());
+        EntitlementSnapshot snapshot = mEntitlementSnapshots.getValue();
+        if (snapshot == null || !snapshot.getProductIds().equals(productIds)) {
+            mEntitledProducts = mProductIndex.toBits(productIds);
+            mEntitlementSnapshots.setValue(new EntitlementSnapshot(snapshot == null ? 1 : snapshot.getSequence() + 1, System.currentTimeMillis(), productIds));
+        }
+        publishEntitlements(productIds);
+    }
+
+    // Writes the current entitlements where other processes can read them, if they've changed.
+    @WorkerThread
+    private void publishEntitlements(Set<String> productIds) {
+        if (mContext == null) {
+            return;
+        }
+
+        if (mPublishedSnapshot == null) {
+            mPublishedSnapshot = EntitlementStore.read(mContext, EntitlementStore.sectionOf(mApiKey));
+        }
+        if (mPublishedSnapshot.getProductIds().equals(productIds)) {
+            return;
+        }
+
+        EntitlementSnapshot snapshot = new EntitlementSnapshot(mPublishedSnapshot.getSequence() + 1, System.currentTimeMillis(), productIds);
+        try {
+            EntitlementStore.write(mContext, EntitlementStore.sectionOf(mApiKey), snapshot);
+        } catch (IOException e) {
+            BillingLog.w("Unable to publish entitlements", e);
+            return;
+        }
+        mPublishedSnapshot = snapshot;
+        mContext.getContentResolver().notifyChange(EntitlementProvider.getUri(mContext), null);
+    }
+
+    @WorkerThread
     private void onPurchaseLost(String productId) {
-        Log.d(TAG, "User has no longer purchased " + productId);
+        if (BillingLog.isLoggable(Log.DEBUG)) {
+            BillingLog.d("User has no longer purchased " + productId);
+        }
+        mEntitlements.remove(productId);
+        mSubscriptionTracker.untrack(productId, System.currentTimeMillis());
         for (PurchaseListener l : mPurchaseListeners) {
-            mActivity.runOnUiThread(() -> l.onPurchaseLost(productId));
+            mCallbackExecutor.execute(() -> l.onPurchaseLost(productId));
         }
     }
 
+    /**
+     * Returns true if the user owns the product, as of the last completed query. This is lock free
+     * and doesn't allocate, so it's safe to call from hot paths like binding list items.
+     */
+    public boolean isEntitled(String productId) {
+        return ProductIndex.contains(mEntitledProducts, mProductIndex.indexOf(productId));
+    }
+
+    /**
+     * The user's entitlements, as of the last completed query. Observers are given the current
+     * snapshot right away, without another query, and then every change after that. An observer
+     * that can't keep up only sees the latest snapshot.
+     */
+    public Observable<EntitlementSnapshot> getEntitlements() {
+        return mEntitlementSnapshots;
+    }
+
+    /**
+     * Returns a stable index for the product, for use with {@link #isEntitled(int)}. Look it up
+     * once, and keep it, to skip hashing the product ID on every check.
+     */
+    public int getProductIndex(String productId) {
+        return mProductIndex.intern(productId);
+    }
+
+    /** Like {@link #isEntitled(String)}, but for an index from {@link #getProductIndex(String)}. */
+    public boolean isEntitled(int productIndex) {
+        return ProductIndex.contains(mEntitledProducts, productIndex);
+    }
+
     /**
      * Launches a dialog for the user to purchase the given product ID. If successful,
      * {@link PurchaseListener#onPurchaseFound(Purchase)} will be called.
+     *
+     * @deprecated Use {@link #purchaseItem(Activity, String)} instead.
      */
+    @Deprecated
     public Task<BillingResult> purchaseItem(String productId) {
         return purchaseItem(productId, ProductType.INAPP);
     }
@@ -171,62 +720,275 @@ public class SupportBillingClient {
     /**
      * Launches a dialog for the user to purchase the given product ID. If successful,
      * {@link PurchaseListener#onPurchaseFound(Purchase)} will be called.
+     *
+     * @deprecated Use {@link #purchaseItem(Activity, String, String)} instead.
      */
+    @Deprecated
     public Task<BillingResult> purchaseItem(String productId, @ProductType String productType) {
-        Callable<BillingResult> callable = () -> {
-            // Connect to the Play Store. This will throw an exception if we fail to connect.
-            ensureConnected();
+        Activity activity = mActivity.get();
+        if (activity == null) {
+            return Tasks.forException(new IllegalStateException("Unable to purchase an item without an Activity. Use purchaseItem(Activity, String)."));
+        }
+        return purchaseItem(activity, productId, productType);
+    }
+
+    /**
+     * Launches a dialog, on top of the given Activity, for the user to purchase the given product
+     * ID. If successful, {@link PurchaseListener#onPurchaseFound(Purchase)} will be called.
+     */
+    public Task<BillingResult> purchaseItem(Activity activity, String productId) {
+        return purchaseItem(activity, productId, ProductType.INAPP);
+    }
 
-            // Look up the product details.
-            SettableFuture<ProductDetails> productDetailsFuture = SettableFuture.create();
-            QueryProductDetailsParams productDetailsParams = QueryProductDetailsParams.newBuilder()
-                    .setProductList(Collections.singletonList(QueryProductDetailsParams.Product.newBuilder().setProductId(productId).setProductType(productType).build()))
-                    .build();
-            mBillingClient.queryProductDetailsAsync(productDetailsParams, (billingResult, productDetailsList) -> {
+    /**
+     * Launches a dialog, on top of the given Activity, for the user to purchase the given product
+     * ID. If successful, {@link PurchaseListener#onPurchaseFound(Purchase)} will be called.
+     */
+    public Task<BillingResult> purchaseItem(Activity activity, String productId, @ProductType String productType) {
+        return startPurchase(activity, productId, productType).getLaunchResult();
+    }
+
+    /**
+     * Like {@link #purchaseItem(Activity, String, String)}, but the returned session also follows
+     * the purchase to its end. {@link PurchaseSession#getPurchase()} completes once the user has
+     * bought the product (and it's been verified and acknowledged) or backed out, and the session
+     * records how long each step took.
+     */
+    public PurchaseSession startPurchase(Activity activity, String productId, @ProductType String productType) {
+        PurchaseSession session = new PurchaseSession(productId);
+        failOnShutdown(session.getPurchase(), session::onFailed);
+        // Only hold the Activity until the dialog is launched.
+        WeakReference<Activity> activityReference = new WeakReference<>(activity);
+        mExecutor.execute(() -> {
+            try {
+                // Connect to the Play Store. This will throw an exception if we fail to connect.
+                session.begin(PurchaseSession.Phase.CONNECT);
+                ensureConnected();
+                session.end(PurchaseSession.Phase.CONNECT);
+
+                // Look up the product details.
+                session.begin(PurchaseSession.Phase.DETAILS);
+                ProductDetails productDetails = getProductDetails(productId, productType);
+                session.end(PurchaseSession.Phase.DETAILS);
+
+                // Launch the billing flow for the product.
+                Activity launchingActivity = activityReference.get();
+                if (launchingActivity == null || launchingActivity.isFinishing()) {
+                    throw new IllegalStateException("The Activity went away before the purchase dialog could be shown.");
+                }
+                session.begin(PurchaseSession.Phase.LAUNCH);
+                BillingResult billingResult = getBackend().launchBillingFlow(launchingActivity, productDetails, newBillingFlowParams(productDetails));
+                session.end(PurchaseSession.Phase.LAUNCH);
+                mConnection.recordResult(billingResult);
                 if (billingResult.getResponseCode() != BillingResponseCode.OK) {
-                    Log.w(TAG, "Attempted to purchase an item, but received error: " + toString(billingResult));
-                    productDetailsFuture.setException(new Exception());
-                    return;
+                    throw new ApiException(new Status(billingResult.getResponseCode(), "Failed to purchase an item from the Play Store: " + toString(billingResult)));
                 }
 
-                if (productDetailsList.isEmpty()) {
-                    Log.w(TAG, "Attempted to purchase an item, but received an empty list");
-                    productDetailsFuture.setException(new Exception());
-                    return;
+                // The result arrives later, on the PurchasesUpdatedListener. That's queued behind us
+                // on this executor, so the session is in place before it can be looked for.
+                putPurchaseSession(session);
+                session.begin(PurchaseSession.Phase.USER_DECISION);
+                session.onLaunched(billingResult);
+                BillingLog.v(() -> "Successfully launched the purchase of item " + productId);
+            } catch (Exception e) {
+                BillingLog.w(() -> "Failed to purchase item " + productId, e);
+                session.onFailed(e);
+            }
+        });
+        return session;
+    }
+
+    // Remembers a session until its outcome arrives, replacing any earlier one for the same product.
+    @WorkerThread
+    private void putPurchaseSession(PurchaseSession session) {
+        PurchaseSession previousSession = mPurchaseSessions.put(session.getProductId(), session);
+        mPurchaseSessionCount = mPurchaseSessions.size();
+        if (previousSession != null && previousSession != session) {
+            previousSession.onFailed(new IllegalStateException("Superseded by another purchase of " + session.getProductId()));
+        }
+    }
+
+    private static BillingFlowParams newBillingFlowParams(ProductDetails productDetails) {
+        return BillingFlowParams.newBuilder()
+                .setProductDetailsParamsList(Collections.singletonList(ProductDetailsParams.newBuilder().setProductDetails(productDetails).build()))
+                .build();
+    }
+
+    /**
+     * Opens a paywall for the given products. Until it's closed, the connection to the Play Store
+     * is held open and each product is made ready to launch, so that a tap on the paywall shows the
+     * purchase dialog without waiting on us. Close it when the paywall is hidden.
+     */
+    public PaywallSession openPaywall(List<String> productIds, @ProductType String productType) {
+        PaywallSession paywall = new PaywallSession(this, new ArrayList<>(productIds), productType);
+        failOnShutdown(paywall.getReady(), paywall::onFailed);
+        mConnection.pin();
+        mExecutor.execute(() -> {
+            try {
+                ensureConnected();
+            } catch (Exception e) {
+                BillingLog.w("Unable to connect for the paywall", e);
+                paywall.onFailed(e);
+                return;
+            }
+
+            for (String productId : paywall.getProductIds()) {
+                if (paywall.isClosed()) {
+                    break;
+                }
+                try {
+                    ProductDetails productDetails = getProductDetails(productId, productType);
+                    paywall.onPrepared(productId, new PaywallSession.PreparedPurchase(productDetails, newBillingFlowParams(productDetails)));
+                } catch (Exception e) {
+                    // It'll be looked up again if it's tapped.
+                    BillingLog.w(() -> "Unable to prepare " + productId + " for the paywall", e);
                 }
+            }
+            paywall.onReady();
+        });
+        return paywall;
+    }
 
-                productDetailsFuture.set(productDetailsList.get(0));
+    // Called by PaywallSession.close().
+    void closePaywall() {
+        mConnection.unpin();
+    }
+
+    // Launches a purchase that a paywall prepared, from the UI thread. Falls back to the executor
+    // if the connection has dropped since.
+    @MainThread
+    PurchaseSession launchPreparedPurchase(Activity activity, ProductDetails productDetails, BillingFlowParams params) {
+        BillingBackend backend = mConnection.getBackendIfConnected();
+        if (backend == null) {
+            return startPurchase(activity, productDetails.getProductId(), productDetails.getProductType());
+        }
+
+        PurchaseSession session = new PurchaseSession(productDetails.getProductId());
+        failOnShutdown(session.getPurchase(), session::onFailed);
+        // Put in place before the dialog is launched, so it's there by the time the outcome is
+        // looked for on the executor.
+        mExecutor.execute(() -> putPurchaseSession(session));
+        session.begin(PurchaseSession.Phase.LAUNCH);
+        BillingResult billingResult = backend.launchBillingFlow(activity, productDetails, params);
+        session.end(PurchaseSession.Phase.LAUNCH);
+        mConnection.recordResult(billingResult);
+        if (billingResult.getResponseCode() != BillingResponseCode.OK) {
+            Exception e = new ApiException(new Status(billingResult.getResponseCode(), "Failed to purchase an item from the Play Store: " + toString(billingResult)));
+            BillingLog.w(() -> "Failed to purchase item " + productDetails.getProductId(), e);
+            mExecutor.execute(() -> {
+                if (mPurchaseSessions.get(session.getProductId()) == session) {
+                    mPurchaseSessions.remove(session.getProductId());
+                    mPurchaseSessionCount = mPurchaseSessions.size();
+                }
+                session.onFailed(e);
             });
+            return session;
+        }
+
+        session.begin(PurchaseSession.Phase.USER_DECISION);
+        session.onLaunched(billingResult);
+        BillingLog.v(() -> "Successfully launched the purchase of item " + productDetails.getProductId());
+        return session;
+    }
+
+    // Finds the session, if any, that the purchase is the outcome of.
+    @WorkerThread
+    @Nullable
+    private PurchaseSession removePurchaseSession(PurchaseRecord purchase) {
+        for (String productId : purchase.getProducts()) {
+            PurchaseSession session = mPurchaseSessions.remove(productId);
+            if (session != null) {
+                mPurchaseSessionCount = mPurchaseSessions.size();
+                return session;
+            }
+        }
+        return null;
+    }
+
+    // The user backed out of a purchase dialog, or it failed. Results like these don't say which
+    // product they're for, but only one dialog can be showing at a time, so it's the latest one.
+    @WorkerThread
+    private void onPurchaseFlowFailed(BillingResult billingResult) {
+        PurchaseSession latestSession = null;
+        for (PurchaseSession session : mPurchaseSessions.values()) {
+            if (session.isAwaitingDecision()) {
+                latestSession = session;
+            }
+        }
+        if (latestSession == null) {
+            return;
+        }
+
+        mPurchaseSessions.remove(latestSession.getProductId());
+        mPurchaseSessionCount = mPurchaseSessions.size();
+        latestSession.onFailed(new ApiException(new Status(billingResult.getResponseCode(), "The purchase did not complete: " + toString(billingResult))));
+        if (BillingLog.isLoggable(Log.DEBUG)) {
+            BillingLog.d("Purchase did not complete: " + latestSession);
+        }
+    }
+
+    // Looks up the details of a product, using our cache if we've seen it before.
+    @WorkerThread
+    private ProductDetails getProductDetails(String productId, @ProductType String productType) throws Exception {
+        String key = productType + "/" + productId;
+        ProductDetails cachedProductDetails = mProductDetailsCache.get(key);
+        if (cachedProductDetails != null) {
+            return cachedProductDetails;
+        }
 
-            // Launch the billing flow for the product.
-            ProductDetails productDetails = productDetailsFuture.get();
-            BillingResult billingResult = mBillingClient.launchBillingFlow(mActivity, BillingFlowParams.newBuilder()
-                    .setProductDetailsParamsList(Collections.singletonList(ProductDetailsParams.newBuilder().setProductDetails(Objects.requireNonNull(productDetails)).build()))
-                    .build());
+        mConnection.acquire(BillingConnection.Operation.QUERY_PRODUCT_DETAILS);
+        SettableFuture<ProductDetails> productDetailsFuture = SettableFuture.create();
+        getBackend().queryProductDetailsAsync(Collections.singletonList(productId), productType, (billingResult, productDetailsList) -> {
+            mConnection.recordResult(billingResult);
             if (billingResult.getResponseCode() != BillingResponseCode.OK) {
-                throw new ApiException(new Status(billingResult.getResponseCode(), "Failed to purchase an item from the Play Store: " + toString(billingResult)));
+                BillingLog.w(() -> "Attempted to purchase an item, but received error: " + toString(billingResult));
+                productDetailsFuture.setException(new ApiException(new Status(billingResult.getResponseCode(), "Failed to look up " + productId + ": " + toString(billingResult))));
+                return;
             }
-            return billingResult;
-        };
 
-        return Tasks.call(mExecutor, callable)
-                .addOnSuccessListener(result -> Log.v(TAG, "Successfully purchased item " + productId))
-                .addOnFailureListener(e -> Log.w(TAG, "Failed to purchase item " + productId));
+            if (productDetailsList.isEmpty()) {
+                BillingLog.w("Attempted to purchase an item, but received an empty list");
+                productDetailsFuture.setException(new ApiException(new Status(BillingResponseCode.ITEM_UNAVAILABLE, "No such product: " + productId)));
+                return;
+            }
+
+            productDetailsFuture.set(productDetailsList.get(0));
+        });
+        ProductDetails productDetails = Objects.requireNonNull(productDetailsFuture.get());
+        mProductDetailsCache.put(key, productDetails);
+        return productDetails;
     }
 
     /**
      * Registers a listener to validate user purchases. When registered, the listener will
      * immediately be called with the current purchase state (restoring purchases if the user has
      * reinstalled the application). The listener will continue to be called whenever
-     * {@link #purchaseItem(String)} results in a successful purchase.
+     * {@link #purchaseItem(Activity, String)} results in a successful purchase.
+     *
+     * Purchases we already know about (eg. from before the Activity was recreated) are reported
+     * right away, before the Play Store has been asked again.
      */
     public Task<BillingResult> registerPurchaseListener(List<String> productIds, PurchaseListener purchaseListener) {
-        if (mPurchaseListeners.contains(purchaseListener)) {
+        if (!mPurchaseListeners.add(purchaseListener)) {
             return Tasks.forResult(BillingResult.newBuilder().setResponseCode(BillingResponseCode.DEVELOPER_ERROR).build());
         }
 
-        mPurchaseListeners.add(purchaseListener);
-        return queryPurchases(productIds);
+        mExecutor.execute(() -> {
+            for (PurchaseRecord record : new LinkedHashSet<>(mEntitlements.values())) {
+                Purchase purchase = record.toPurchase();
+                mCallbackExecutor.execute(() -> purchaseListener.onPurchaseFound(purchase));
+            }
+
+            // If we won't be asking the Play Store, tell the new listener what a query would have.
+            if (QueryOptions.DEFAULT.isUsable(getQueryAgeNanos(productIds))) {
+                for (String productId : productIds) {
+                    if (!mEntitlements.containsKey(productId)) {
+                        mCallbackExecutor.execute(() -> purchaseListener.onPurchaseLost(productId));
+                    }
+                }
+            }
+        });
+        return queryPurchases(productIds, QueryOptions.DEFAULT);
     }
 
     public Task<BillingResult> unregisterPurchaseListener(PurchaseListener purchaseListener) {
@@ -237,172 +999,481 @@ public class SupportBillingClient {
         }
     }
 
+    /**
+     * Looks up the user's purchases of the given products, both one-time products and
+     * subscriptions, and reports them to the registered listeners.
+     *
+     * This happens in two phases. Purchases in the Play Store's on-device cache are reported as
+     * soon as they're read. Meanwhile, the user's purchase history is fetched over the network, and
+     * once it arrives anything that's in neither is reported as lost. The Task completes after the
+     * second phase.
+     */
     public Task<BillingResult> queryPurchases(List<String> productIds) {
-        Callable<BillingResult> callable = () -> {
-            // Connect to the Play Store. This will throw an exception if we fail to connect.
-            ensureConnected();
+        return queryPurchases(productIds, QueryOptions.REFRESH);
+    }
 
-            // Look up the purchases in the Play Store's on-device cache.
-            SettableFuture<List<Purchase>> purchasesFuture = SettableFuture.create();
-            PurchasesResponseListener purchasesResponseListener = (billingResult, purchases) -> {
-                if (billingResult.getResponseCode() != BillingResponseCode.OK) {
-                    Log.w(TAG, "Attempted to query purchase history, but received error: " + toString(billingResult));
-                    purchasesFuture.setException(new Exception());
-                    return;
+    /**
+     * Like {@link #queryPurchases(List)}, but what we already know is served from memory if it's
+     * fresh enough by the given options. Stale results complete the Task right away and are
+     * refreshed in the background, with any changes reported to the listeners as usual. Results
+     * past the stale window wait for the query, as does the first query of each product.
+     */
+    public Task<BillingResult> queryPurchases(List<String> productIds, QueryOptions options) {
+        TaskCompletionSource<BillingResult> taskCompletionSource = newTaskCompletionSource();
+        mExecutor.execute(() -> {
+            long ageNanos = getQueryAgeNanos(productIds);
+            if (options.isUsable(ageNanos)) {
+                if (options.isStale(ageNanos)) {
+                    startQuery(productIds);
                 }
+                taskCompletionSource.trySetResult(BillingResult.newBuilder().setResponseCode(BillingResponseCode.OK).build());
+                return;
+            }
 
-                purchasesFuture.set(purchases);
-            };
-            mBillingClient.queryPurchasesAsync(QueryPurchasesParams.newBuilder().setProductType(ProductType.INAPP).build(), purchasesResponseListener);
-            List<Purchase> purchases = purchasesFuture.get();
-            if (purchases != null && !purchases.isEmpty()) {
-                // We successfully found purchases in the cache. We can report these right away.
-                for (Purchase purchase : purchases) {
-                    onPurchaseFound(purchase);
+            startQuery(productIds).addOnCompleteListener(mExecutor, task -> {
+                if (task.isSuccessful()) {
+                    taskCompletionSource.trySetResult(task.getResult());
+                } else {
+                    taskCompletionSource.trySetException(Objects.requireNonNull(task.getException()));
                 }
-                return BillingResult.newBuilder().setResponseCode(BillingResponseCode.OK).build();
+            });
+        });
+        return taskCompletionSource.getTask();
+    }
+
+    // How long ago the given products were last read from the Play Store, or Long.MAX_VALUE if they never were.
+    @WorkerThread
+    private long getQueryAgeNanos(List<String> productIds) {
+        if (mLastQueryNanos == null) {
+            return Long.MAX_VALUE;
+        }
+        long queryNanos = mLastQueryNanos;
+        for (String productId : productIds) {
+            Long productQueryNanos = mProductQueryNanos.get(productId);
+            if (productQueryNanos == null) {
+                return Long.MAX_VALUE;
             }
+            queryNanos = Math.min(queryNanos, productQueryNanos);
+        }
+        return System.nanoTime() - queryNanos;
+    }
+
+    // Starts a query, or joins the one in flight if it covers the same products.
+    @WorkerThread
+    private Task<BillingResult> startQuery(List<String> productIds) {
+        Task<BillingResult> queryInFlight = mQueryInFlight;
+        if (queryInFlight != null && mQueryInFlightProductIds.containsAll(productIds)) {
+            return queryInFlight;
+        }
 
-            // There was nothing in the Play Store's cache, but we can still make a live network query.
-            SettableFuture<List<PurchaseHistoryRecord>> purchaseHistoryRecordFuture = SettableFuture.create();
-            PurchaseHistoryResponseListener purchaseHistoryResponseListener = (billingResult, purchaseHistoryRecords) -> {
-                if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                    Log.w(TAG, "Attempted to query purchase history, but received error: " + toString(billingResult));
-                    purchaseHistoryRecordFuture.setException(new Exception());
-                    return;
+        Task<BillingResult> query = runQuery(productIds);
+        mQueryInFlight = query;
+        mQueryInFlightProductIds = new ArraySet<>(productIds);
+        query.addOnCompleteListener(mExecutor, task -> {
+            if (mQueryInFlight == query) {
+                mQueryInFlight = null;
+                mQueryInFlightProductIds = Collections.emptySet();
+            }
+        });
+        return query;
+    }
+
+    // Asks the Play Store for the user's purchases, in the two phases described in queryPurchases.
+    private Task<BillingResult> runQuery(List<String> productIds) {
+        TaskCompletionSource<BillingResult> taskCompletionSource = newTaskCompletionSource();
+        mExecutor.execute(() -> {
+            // Connect to the Play Store. This will fail the Task if we fail to connect.
+            try {
+                ensureConnected();
+            } catch (Exception e) {
+                // Try again once the Play Store can be reached.
+                mOperationJournal.enqueue(OperationJournal.Type.RESTORE, RESTORE_KEY, PRODUCT_ID_JOINER.join(productIds));
+                mOperationJournal.onReplayFailed();
+                taskCompletionSource.trySetException(e);
+                return;
+            }
+
+            // Ask for the purchase history first, so that the network round trip overlaps with
+            // everything else we do here.
+            ListenableFuture<List<PurchaseHistoryRecord>> purchaseHistoryFuture = queryPurchaseHistoryAsync(ProductType.INAPP);
+
+            // Active subscriptions are always in the Play Store's on-device cache, and anything that
+            // isn't there has lapsed.
+            Set<String> expectedPurchases = new LinkedHashSet<>(productIds);
+            try {
+                expectedPurchases.removeAll(querySubscriptions());
+            } catch (Exception e) {
+                BillingLog.w("Unable to query subscriptions", e);
+                // The history below is of one-time products only, so it can't vouch for a
+                // subscription. Without the query, the subscriptions we know of have to stand.
+                expectedPurchases.removeAll(getKnownSubscriptionIds());
+            }
+
+            // Phase one: report what's in the on-device cache right away.
+            Set<String> cachedProductIds = new ArraySet<>();
+            boolean cacheAvailable;
+            try {
+                long queryNanos = System.nanoTime();
+                for (Purchase purchase : queryPurchasesAsync(ProductType.INAPP)) {
+                    PurchaseRecord record = PurchaseRecord.of(purchase);
+                    onPurchaseFound(record);
+                    cachedProductIds.addAll(record.getProducts());
+                }
+                expectedPurchases.removeAll(cachedProductIds);
+                cacheAvailable = true;
+                mLastQueryNanos = queryNanos;
+                for (String productId : productIds) {
+                    mProductQueryNanos.put(productId, queryNanos);
+                }
+                // This restore covers the one we owed, if it was for the same products.
+                if (PRODUCT_ID_JOINER.join(productIds).equals(mOperationJournal.get(OperationJournal.Type.RESTORE, RESTORE_KEY))) {
+                    mOperationJournal.complete(OperationJournal.Type.RESTORE, RESTORE_KEY);
                 }
+            } catch (Exception e) {
+                BillingLog.w("Unable to read purchases from the Play Store's cache", e);
+                cacheAvailable = false;
+                mOperationJournal.enqueue(OperationJournal.Type.RESTORE, RESTORE_KEY, PRODUCT_ID_JOINER.join(productIds));
+                mOperationJournal.onReplayFailed();
+            }
+            commitEntitlements();
 
-                purchaseHistoryRecordFuture.set(purchaseHistoryRecords);
-            };
-            QueryPurchaseHistoryParams queryPurchaseHistoryParams = QueryPurchaseHistoryParams.newBuilder()
-                    .setProductType(ProductType.INAPP)
-                    .build();
-            mBillingClient.queryPurchaseHistoryAsync(queryPurchaseHistoryParams, purchaseHistoryResponseListener);
-
-            // For every record that's found, report onPurchaseFound. For each product that we did
-            // not find, report onPurchaseLost.
-            List<PurchaseHistoryRecord> purchaseHistoryRecords = purchaseHistoryRecordFuture.get();
-            List<String> expectedPurchases = new ArrayList<>(productIds);
-            for (PurchaseHistoryRecord purchaseHistoryRecord : Objects.requireNonNull(purchaseHistoryRecords)) {
-                Log.d(TAG, "Discovered " + purchaseHistoryRecord.getProducts() + " in the user's purchase history");
-                Purchase purchase;
+            // Phase two: reconcile against the purchase history once it arrives. The executor is
+            // free to do other work until then.
+            boolean fallbackToCache = cacheAvailable;
+            purchaseHistoryFuture.addListener(() -> {
                 try {
-                    purchase = new Purchase(purchaseHistoryRecord.getOriginalJson(), purchaseHistoryRecord.getSignature());
-                } catch (JSONException e) {
-                    continue;
+                    reconcilePurchaseHistory(Objects.requireNonNull(purchaseHistoryFuture.get()), cachedProductIds, expectedPurchases);
+                    taskCompletionSource.trySetResult(BillingResult.newBuilder().setResponseCode(BillingResponseCode.OK).build());
+                } catch (Exception e) {
+                    if (fallbackToCache) {
+                        // We can't tell what's been refunded, but what we reported from the cache still stands.
+                        BillingLog.w("Unable to reconcile against the user's purchase history", e);
+                        taskCompletionSource.trySetResult(BillingResult.newBuilder().setResponseCode(BillingResponseCode.OK).build());
+                    } else {
+                        taskCompletionSource.trySetException(e);
+                    }
+                } finally {
+                    commitEntitlements();
                 }
-                onPurchaseFound(purchase);
-                expectedPurchases.removeAll(purchaseHistoryRecord.getProducts());
+            }, mExecutor);
+        });
+        return taskCompletionSource.getTask();
+    }
+
+    // The subscriptions we're tracking or the user is entitled to, as of the last successful query.
+    @WorkerThread
+    private Set<String> getKnownSubscriptionIds() {
+        Set<String> productIds = mSubscriptionTracker.getTrackedProductIds();
+        for (Map.Entry<String, PurchaseRecord> entry : mEntitlements.entrySet()) {
+            if (entry.getValue().isAutoRenewing()) {
+                productIds.add(entry.getKey());
             }
+        }
+        return productIds;
+    }
 
-            // For everything the play store did not have a purchase history for, report it as such.
-            // This way, if the purchase was refunded, the app can re-adjust its state.
-            for (String productId : expectedPurchases) {
-                Log.d(TAG, "Failed to find " + productId + " in the user's purchase history");
-                onPurchaseLost(productId);
+    // Starts fetching the user's purchase history of the given type, over the network.
+    @WorkerThread
+    private ListenableFuture<List<PurchaseHistoryRecord>> queryPurchaseHistoryAsync(@ProductType String productType) {
+        SettableFuture<List<PurchaseHistoryRecord>> purchaseHistoryRecordFuture = SettableFuture.create();
+        try {
+            mConnection.acquire(BillingConnection.Operation.QUERY_PURCHASE_HISTORY);
+        } catch (BillingConnection.ThrottledException e) {
+            purchaseHistoryRecordFuture.setException(e);
+            return purchaseHistoryRecordFuture;
+        }
+        PurchaseHistoryResponseListener purchaseHistoryResponseListener = (billingResult, purchaseHistoryRecords) -> {
+            mConnection.recordResult(billingResult);
+            if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                BillingLog.w(() -> "Attempted to query purchase history, but received error: " + toString(billingResult));
+                purchaseHistoryRecordFuture.setException(new ApiException(new Status(billingResult.getResponseCode(), toString(billingResult))));
+                return;
             }
-            return BillingResult.newBuilder().setResponseCode(BillingResponseCode.OK).build();
+
+            purchaseHistoryRecordFuture.set(purchaseHistoryRecords);
         };
+        getBackend().queryPurchaseHistoryAsync(productType, purchaseHistoryResponseListener);
+        return purchaseHistoryRecordFuture;
+    }
+
+    // The authoritative half of queryPurchases. Reports purchases that are only in the history, and
+    // reports as lost every expected product that's in neither the history nor the cache.
+    @WorkerThread
+    private void reconcilePurchaseHistory(List<PurchaseHistoryRecord> purchaseHistoryRecords, Set<String> cachedProductIds, Set<String> expectedPurchases) {
+        // Each record's JSON is only read once, and the expected products are a set so that long
+        // histories stay linear.
+        for (PurchaseHistoryRecord purchaseHistoryRecord : purchaseHistoryRecords) {
+            PurchaseRecord purchase;
+            try {
+                purchase = PurchaseRecord.parse(purchaseHistoryRecord.getOriginalJson(), purchaseHistoryRecord.getSignature());
+            } catch (JSONException e) {
+                BillingLog.w("Unable to read a record in the user's purchase history", e);
+                continue;
+            }
+            expectedPurchases.removeAll(purchase.getProducts());
 
-        return Tasks.call(mExecutor, callable);
+            // The cache is more up to date than the history, so it wins.
+            if (!Collections.disjoint(cachedProductIds, purchase.getProducts())) {
+                continue;
+            }
+            if (BillingLog.isLoggable(Log.DEBUG)) {
+                BillingLog.d("Discovered " + purchase.getProducts() + " in the user's purchase history");
+            }
+            onPurchaseFound(purchase);
+        }
+
+        // For everything the play store did not have a purchase for, report it as such.
+        // This way, if the purchase was refunded, the app can re-adjust its state.
+        for (String productId : expectedPurchases) {
+            if (BillingLog.isLoggable(Log.DEBUG)) {
+                BillingLog.d("Failed to find " + productId + " in the user's purchases");
+            }
+            onPurchaseLost(productId);
+        }
     }
 
-    // Silently connects to the Play Store, if we're not already connected.
-    public Task<BillingResult> verifyBillingSupport() {
-        return Tasks.call(mExecutor, this::ensureConnected);
+    // Looks up the purchases of the given type in the Play Store's on-device cache.
+    @WorkerThread
+    private List<Purchase> queryPurchasesAsync(@ProductType String productType) throws Exception {
+        mConnection.acquire(BillingConnection.Operation.QUERY_PURCHASES);
+        SettableFuture<List<Purchase>> purchasesFuture = SettableFuture.create();
+        PurchasesResponseListener purchasesResponseListener = (billingResult, purchases) -> {
+            mConnection.recordResult(billingResult);
+            if (billingResult.getResponseCode() != BillingResponseCode.OK) {
+                BillingLog.w(() -> "Attempted to query purchases, but received error: " + toString(billingResult));
+                purchasesFuture.setException(new ApiException(new Status(billingResult.getResponseCode(), toString(billingResult))));
+                return;
+            }
+
+            purchasesFuture.set(purchases);
+        };
+        getBackend().queryPurchasesAsync(productType, purchasesResponseListener);
+        List<Purchase> purchases = purchasesFuture.get();
+        return purchases != null ? purchases : Collections.emptyList();
     }
 
+    // Reports the user's active subscriptions, and any we were tracking that have since lapsed.
+    // Returns the product IDs of the active subscriptions.
     @WorkerThread
-    private BillingResult ensureConnected() throws Exception {
-        // A shortcut! We're already connected, so we can no-op here.
-        if (mServiceConnectionState == ServiceConnectionState.CONNECTED) {
-            // Reset the disconnect timer, since there's user interaction.
-            mExecutor.remove(mDisconnectTask);
-            mExecutor.schedule(mDisconnectTask, 15, TimeUnit.SECONDS);
-            return BillingResult.newBuilder().setResponseCode(BillingResponseCode.OK).build();
+    private Set<String> querySubscriptions() throws Exception {
+        Set<String> activeProductIds = new ArraySet<>();
+        for (Purchase purchase : queryPurchasesAsync(ProductType.SUBS)) {
+            PurchaseRecord record = PurchaseRecord.of(purchase);
+            onPurchaseFound(record);
+            trackSubscription(record);
+            activeProductIds.addAll(record.getProducts());
         }
 
-        // Darn, not connected yet. We'll have to do this the long way.
-        mServiceConnectionState = ServiceConnectionState.CONNECTING;
-
-        SettableFuture<BillingResult> future = SettableFuture.create();
-        mBillingClient.startConnection(new BillingClientStateListener() {
-            @Override
-            public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
-                future.set(billingResult);
+        for (String productId : mSubscriptionTracker.getTrackedProductIds()) {
+            if (!activeProductIds.contains(productId)) {
+                BillingLog.d(() -> "Subscription " + productId + " has lapsed");
+                onPurchaseLost(productId);
             }
+        }
+        return activeProductIds;
+    }
+
+    // Starts watching a subscription for its next renewal, if the user is entitled to it.
+    @WorkerThread
+    private void trackSubscription(PurchaseRecord purchase) {
+        if (purchase.getProducts().isEmpty() || mEntitlements.get(purchase.getProducts().get(0)) != purchase) {
+            return;
+        }
 
-            @Override
-            public void onBillingServiceDisconnected() {
-                Log.w(TAG, "Billing temporarily disconnected");
-                mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+        // The billing period is in the product details. Without them, the tracker falls back to checking daily.
+        ProductDetails productDetails = null;
+        try {
+            productDetails = getProductDetails(purchase.getProducts().get(0), ProductType.SUBS);
+        } catch (Exception e) {
+            BillingLog.w(() -> "Unable to look up the billing period of " + purchase.getProducts(), e);
+        }
+        mSubscriptionTracker.track(purchase, productDetails, System.currentTimeMillis());
+    }
+
+    /**
+     * Catches up on everything in one go, for {@link EntitlementRefreshWorker}. Runs a full query
+     * (one-time products, subscriptions and the purchase history) of the products we've been asked
+     * about or last published, checks on pending purchases, and sends any acknowledgements we still
+     * owe. Completes once all of that is done, with the result of the query.
+     */
+    Task<BillingResult> refreshEntitlements() {
+        TaskCompletionSource<BillingResult> taskCompletionSource = newTaskCompletionSource();
+        mExecutor.execute(() -> {
+            // In a process the worker woke up, nothing's been asked about yet. What we last
+            // published is what could have been refunded since.
+            Set<String> productIds = new LinkedHashSet<>(mProductQueryNanos.keySet());
+            if (mContext != null) {
+                productIds.addAll(EntitlementStore.read(mContext, EntitlementStore.sectionOf(mApiKey)).getProductIds());
             }
+
+            startQuery(new ArrayList<>(productIds)).continueWithTask(mExecutor, query -> {
+                recheckPendingPurchases();
+                return Tasks.whenAll(drainAcknowledgements()).continueWithTask(mExecutor, acknowledgements -> query);
+            }).addOnCompleteListener(mExecutor, task -> {
+                if (task.isSuccessful()) {
+                    taskCompletionSource.trySetResult(task.getResult());
+                } else {
+                    taskCompletionSource.trySetException(Objects.requireNonNull(task.getException()));
+                }
+            });
         });
+        return taskCompletionSource.getTask();
+    }
 
-        // If we failed to connect, throw an exception so the Task will return a failure.
-        // It's not smart enough to know how to read the internals of BillingResult.
-        BillingResult billingResult = future.get();
-        if (Objects.requireNonNull(billingResult).getResponseCode() != BillingResponseCode.OK) {
-            throw new ApiException(new Status(billingResult.getResponseCode(), "Failed to connect to the Play Store: " + toString(billingResult)));
+    // Called by mSubscriptionTracker when a subscription was expected to renew.
+    @WorkerThread
+    private void recheckSubscriptions(Set<String> productIds) {
+        BillingLog.d(() -> "Checking whether " + productIds + " renewed");
+        try {
+            ensureConnected();
+            querySubscriptions();
+            commitEntitlements();
+        } catch (Exception e) {
+            BillingLog.w(() -> "Unable to check on subscriptions " + productIds + ". Trying again later.", e);
+            mSubscriptionTracker.postpone(productIds, System.currentTimeMillis());
         }
-
-        // If we succeeded in connecting, then we need to start a timer to disconnect in the
-        // future. Otherwise, we'll get trapped in a memory leak.
-        mExecutor.remove(mDisconnectTask);
-        mExecutor.schedule(mDisconnectTask, 15, TimeUnit.SECONDS);
-        return billingResult;
     }
 
-    private void attemptToDisconnect() {
-        // Already disconnected! Nothing more to do.
-        if (mServiceConnectionState == ServiceConnectionState.DISCONNECTED) {
+    // Called by mPendingPurchaseTracker. Looks up only the purchases that were pending, in the Play
+    // Store's on-device cache, rather than doing a full restore.
+    @WorkerThread
+    private void recheckPendingPurchases() {
+        if (mPendingPurchaseTracker.isEmpty()) {
             return;
         }
 
-        // Unable to disconnect until the user is done with the connection.
-        if (!mPurchaseListeners.isEmpty()) {
-            mExecutor.remove(mDisconnectTask);
-            mExecutor.schedule(mDisconnectTask, 15, TimeUnit.SECONDS);
+        try {
+            ensureConnected();
+            Set<String> purchaseTokens = mPendingPurchaseTracker.getPurchaseTokens();
+            boolean complete = true;
+            for (String productType : new String[] {ProductType.INAPP, ProductType.SUBS}) {
+                List<Purchase> purchases;
+                try {
+                    purchases = queryPurchasesAsync(productType);
+                } catch (Exception e) {
+                    BillingLog.w(() -> "Unable to check on pending " + productType + " purchases", e);
+                    complete = false;
+                    continue;
+                }
+                for (Purchase purchase : purchases) {
+                    // Still pending purchases have nothing new to report.
+                    if (purchaseTokens.remove(purchase.getPurchaseToken()) && purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+                        PurchaseRecord record = PurchaseRecord.of(purchase);
+                        onPurchaseFound(record);
+                        // As in querySubscriptions, so that its renewal is checked on.
+                        if (ProductType.SUBS.equals(productType)) {
+                            trackSubscription(record);
+                        }
+                    }
+                }
+            }
+
+            // Pending purchases that have disappeared were cancelled, or never paid for in time.
+            if (complete) {
+                for (String purchaseToken : purchaseTokens) {
+                    BillingLog.d(() -> "Pending purchase " + purchaseToken + " was cancelled");
+                    mPendingPurchaseTracker.remove(purchaseToken);
+                }
+            }
+            commitEntitlements();
+        } catch (Exception e) {
+            BillingLog.w("Unable to check on pending purchases", e);
+        }
+        mPendingPurchaseTracker.onRechecked();
+    }
+
+    // Silently connects to the Play Store, if we're not already connected.
+    public Task<BillingResult> verifyBillingSupport() {
+        TaskCompletionSource<BillingResult> taskCompletionSource = newTaskCompletionSource();
+        mExecutor.execute(() -> {
+            try {
+                taskCompletionSource.trySetResult(ensureConnected());
+            } catch (Exception e) {
+                taskCompletionSource.trySetException(e);
+            }
+        });
+        return taskCompletionSource.getTask();
+    }
+
+    @WorkerThread
+    private BillingResult ensureConnected() throws Exception {
+        return mConnection.ensureConnected();
+    }
+
+    // Stops this client. It's unusable afterwards, but other clients sharing the connection are unaffected.
+    // Anything callers are waiting on fails, as does anything they ask for afterwards.
+    @VisibleForTesting
+    void shutdown() {
+        IllegalStateException shutdownException = new IllegalStateException("The SupportBillingClient has been shut down");
+        mShutdownException = shutdownException;
+        for (OnFailureListener onShutdown : new ArrayList<>(mOutstanding.values())) {
+            onShutdown.onFailure(shutdownException);
+        }
+        mPurchaseListeners.clear();
+        mConnection.removeClient(mConnectionClient);
+        if (mOwnsConnection) {
+            mConnection.shutdown();
             return;
         }
+        mExecutor.execute(() -> {
+            mSubscriptionTracker.cancel();
+            mPendingPurchaseTracker.cancel();
+            mOperationJournal.cancel();
+        });
+    }
 
-        // Goodbye.
-        mBillingClient.endConnection();
-        mServiceConnectionState = ServiceConnectionState.DISCONNECTED;
+    // A TaskCompletionSource that's failed if we're shut down before it's completed.
+    private <T> TaskCompletionSource<T> newTaskCompletionSource() {
+        TaskCompletionSource<T> taskCompletionSource = new TaskCompletionSource<>();
+        failOnShutdown(taskCompletionSource.getTask(), taskCompletionSource::trySetException);
+        return taskCompletionSource;
+    }
+
+    // Keeps track of the Task until it completes, so that it can be failed if we're shut down.
+    private void failOnShutdown(Task<?> task, OnFailureListener onShutdown) {
+        mOutstanding.put(task, onShutdown);
+        task.addOnCompleteListener(MoreExecutors.directExecutor(), mOutstanding::remove);
+        IllegalStateException shutdownException = mShutdownException;
+        if (shutdownException != null) {
+            onShutdown.onFailure(shutdownException);
+        }
     }
 
     public static String toString(BillingResult billingResult) {
         return toString(billingResult.getResponseCode());
     }
 
+    // Returns constants for the known codes, so that logging a result doesn't format a string.
     public static String toString(@BillingResponseCode int billingResponseCode) {
         switch (billingResponseCode) {
             case BillingClient.BillingResponseCode.FEATURE_NOT_SUPPORTED:
-                return String.format(Locale.US, "[%d]FEATURE_NOT_SUPPORTED", billingResponseCode);
+                return "[-2]FEATURE_NOT_SUPPORTED";
             case BillingClient.BillingResponseCode.SERVICE_DISCONNECTED:
-                return String.format(Locale.US, "[%d]SERVICE_DISCONNECTED", billingResponseCode);
+                return "[-1]SERVICE_DISCONNECTED";
             case BillingClient.BillingResponseCode.SERVICE_TIMEOUT:
-                return String.format(Locale.US, "[%d]SERVICE_TIMEOUT", billingResponseCode);
+                return "[-3]SERVICE_TIMEOUT";
             case BillingClient.BillingResponseCode.USER_CANCELED:
-                return String.format(Locale.US, "[%d]USER_CANCELED", billingResponseCode);
+                return "[1]USER_CANCELED";
             case BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE:
-                return String.format(Locale.US, "[%d]SERVICE_UNAVAILABLE", billingResponseCode);
+                return "[2]SERVICE_UNAVAILABLE";
             case BillingClient.BillingResponseCode.BILLING_UNAVAILABLE:
-                return String.format(Locale.US, "[%d]BILLING_UNAVAILABLE", billingResponseCode);
+                return "[3]BILLING_UNAVAILABLE";
             case BillingClient.BillingResponseCode.ITEM_UNAVAILABLE:
-                return String.format(Locale.US, "[%d]ITEM_UNAVAILABLE", billingResponseCode);
+                return "[4]ITEM_UNAVAILABLE";
             case BillingClient.BillingResponseCode.DEVELOPER_ERROR:
-                return String.format(Locale.US, "[%d]DEVELOPER_ERROR", billingResponseCode);
+                return "[5]DEVELOPER_ERROR";
             case BillingClient.BillingResponseCode.ERROR:
-                return String.format(Locale.US, "[%d]ERROR", billingResponseCode);
+                return "[6]ERROR";
             case BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED:
-                return String.format(Locale.US, "[%d]ITEM_ALREADY_OWNED", billingResponseCode);
+                return "[7]ITEM_ALREADY_OWNED";
             case BillingClient.BillingResponseCode.ITEM_NOT_OWNED:
-                return String.format(Locale.US, "[%d]ITEM_NOT_OWNED", billingResponseCode);
+                return "[8]ITEM_NOT_OWNED";
             case BillingClient.BillingResponseCode.OK:
-                return String.format(Locale.US, "[%d]OK", billingResponseCode);
+                return "[0]OK";
+            case BillingClient.BillingResponseCode.NETWORK_ERROR:
+                return "[12]NETWORK_ERROR";
             default:
-                return String.format(Locale.US, "[%d]UNKNOWN", billingResponseCode);
+                return "[" + billingResponseCode + "]UNKNOWN";
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.startup.Initializer;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Connects to the Play Store during app startup, so that the connection is (usually) ready by the
+ * time the first Activity asks for purchases. This is opt-in. Declare your API key in your
+ * AndroidManifest.xml's application tag to enable it.
+ *
+ * <pre>{@code
+ * <meta-data
+ *     android:name="com.xlythe.playbilling.API_KEY"
+ *     android:value="YOUR_KEY_FROM_THE_PLAY_CONSOLE" />
+ * }</pre>
+ *
+ * The manifest is read on a background thread, so startup doesn't wait on the package manager.
+ * The returned task resolves to the connecting client, or fails with an
+ * {@link IllegalStateException} if no API key was declared.
+ */
+public class SupportBillingClientInitializer implements Initializer<Task<SupportBillingClient>> {
+    public static final String META_DATA_API_KEY = "com.xlythe.playbilling.API_KEY";
+
+    @NonNull
+    @Override
+    public Task<SupportBillingClient> create(@NonNull Context context) {
+        Context applicationContext = context.getApplicationContext();
+        TaskCompletionSource<SupportBillingClient> taskCompletionSource = new TaskCompletionSource<>();
+        new Thread(() -> {
+            String apiKey = getApiKey(applicationContext);
+            if (TextUtils.isEmpty(apiKey)) {
+                taskCompletionSource.setException(new IllegalStateException("No " + META_DATA_API_KEY + " meta-data in the manifest"));
+                return;
+            }
+
+            SupportBillingClient billingClient = SupportBillingClient.getInstance(applicationContext, apiKey);
+            billingClient.verifyBillingSupport();
+            taskCompletionSource.setResult(billingClient);
+        }, "SupportBillingClientInitializer").start();
+        return taskCompletionSource.getTask();
+    }
+
+    @NonNull
+    @Override
+    public List<Class<? extends Initializer<?>>> dependencies() {
+        return Collections.emptyList();
+    }
+
+    @Nullable
+    private static String getApiKey(Context context) {
+        try {
+            ApplicationInfo applicationInfo = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+            Bundle metaData = applicationInfo.metaData;
+            return metaData != null ? metaData.getString(META_DATA_API_KEY) : null;
+        } catch (PackageManager.NameNotFoundException e) {
+            BillingLog.w("Unable to read our own manifest", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.xlythe.playbilling;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers purchases whose signatures have already been verified, so that seeing the same
+ * purchase again (every restore, every listener) costs a hash instead of an RSA verification.
+ *
+ * Entries are keyed by purchase token, but only match if a digest over the API key, the signed
+ * JSON and the signature matches too. Tampering with any of them is a cache miss and gets the full
+ * verification. The cache is bounded, and can optionally be persisted to SharedPreferences.
+ *
+ * Persisted digests are HMACs, under a key that's wrapped by the Android Keystore, so they can't
+ * be forged by anyone who can write our preferences (or restore them from a backup). That needs
+ * API 23. On older devices the cache is kept in memory only.
+ */
+final class VerifiedPurchaseCache {
+    private static final String PREFERENCES_NAME = "com.xlythe.playbilling.verified_purchases.";
+    private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS_PREFIX = "com.xlythe.playbilling.verified_purchases.";
+    // Where the wrapped HMAC key is kept, among the digests. Purchase tokens are never empty.
+    private static final String MAC_KEY_ENTRY = "";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int WRAP_TAG_BITS = 128;
+    private static final int MAC_KEY_BYTES = 32;
+    private static final int MAX_SIZE = 256;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String mApiKey;
+    // Our API key's own namespace, so that clients for other keys don't share (or clear) our entries.
+    private final String mSection;
+    @Nullable private final Context mContext;
+
+    // Purchase token -> digest of what was verified. Ordered by access, so the eldest is the least recently used.
+    private final Map<String, String> mDigests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if (size() <= MAX_SIZE) {
+                return false;
+            }
+            if (mPreferences != null) {
+                mPreferences.edit().remove(eldest.getKey()).apply();
+            }
+            return true;
+        }
+    };
+
+    // Non-null while the cache is persisted.
+    @Nullable private SharedPreferences mPreferences;
+    // Digests are HMACs under this while the cache is persisted, and plain SHA-256 otherwise.
+    @Nullable private Mac mMac;
+
+    VerifiedPurchaseCache(@Nullable Context context, String apiKey) {
+        mContext = context;
+        mApiKey = apiKey;
+        mSection = EntitlementStore.sectionOf(apiKey);
+    }
+
+    /** When enabled, verified purchases are remembered across process restarts, if the device supports it. */
+    synchronized void setPersistent(boolean persistent) {
+        if (!persistent || mContext == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            if (mPreferences != null) {
+                mPreferences.edit().clear().apply();
+                // Digests made under the HMAC key can't be checked without it.
+                mDigests.clear();
+            }
+            mPreferences = null;
+            mMac = null;
+            return;
+        }
+        if (mPreferences != null) {
+            return;
+        }
+
+        SharedPreferences preferences = mContext.getSharedPreferences(PREFERENCES_NAME + mSection, Context.MODE_PRIVATE);
+        Mac mac = loadMac(preferences);
+        if (mac == null) {
+            return;
+        }
+
+        // What's in memory was digested without the key, and has to be verified again.
+        mDigests.clear();
+        mPreferences = preferences;
+        mMac = mac;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!MAC_KEY_ENTRY.equals(entry.getKey()) && entry.getValue() instanceof String) {
+                mDigests.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+    }
+
+    /** Returns true if this exact purchase has been verified before. */
+    synchronized boolean isVerified(String purchaseToken, String signedData, String signature) {
+        String digest = mDigests.get(purchaseToken);
+        return digest != null && MessageDigest.isEqual(
+                digest.getBytes(StandardCharsets.UTF_8), digest(signedData, signature).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Records that this exact purchase has passed verification. */
+    synchronized void putVerified(String purchaseToken, String signedData, String signature) {
+        String digest = digest(signedData, signature);
+        mDigests.put(purchaseToken, digest);
+        if (mPreferences != null) {
+            mPreferences.edit().putString(purchaseToken, digest).apply();
+        }
+    }
+
+    synchronized int size() {
+        return mDigests.size();
+    }
+
+    // Returns a Mac under our HMAC key, unwrapping it with the Keystore, or creating it if there
+    // isn't one we can unwrap. Null if the Keystore can't be used.
+    @RequiresApi(Build.VERSION_CODES.M)
+    @Nullable
+    private Mac loadMac(SharedPreferences preferences) {
+        String alias = KEY_ALIAS_PREFIX + mSection;
+        try {
+            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+            keyStore.load(null);
+
+            byte[] macKey = null;
+            String wrappedMacKey = preferences.getString(MAC_KEY_ENTRY, null);
+            Key wrappingKey = keyStore.getKey(alias, null);
+            if (wrappedMacKey != null && wrappingKey != null) {
+                macKey = unwrap(wrappingKey, wrappedMacKey);
+            }
+            if (macKey == null) {
+                // Restored from a backup, or the Keystore was reset. Anything that was persisted
+                // can't be trusted, so we start over with a new key.
+                macKey = new byte[MAC_KEY_BYTES];
+                new SecureRandom().nextBytes(macKey);
+                preferences.edit()
+                        .clear()
+                        .putString(MAC_KEY_ENTRY, wrap(newWrappingKey(alias), macKey))
+                        .apply();
+            }
+
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException | IOException e) {
+            BillingLog.w("Unable to persist verified purchases", e);
+            return null;
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private static SecretKey newWrappingKey(String alias) throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEY_STORE);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+        return keyGenerator.generateKey();
+    }
+
+    // The IV and the encrypted key, base64 encoded and separated by a colon.
+    private static String wrap(Key wrappingKey, byte[] macKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+        byte[] encrypted = cipher.doFinal(macKey);
+        return Base64.encodeToString(cipher.getIV(), Base64.NO_WRAP) + ":" + Base64.encodeToString(encrypted, Base64.NO_WRAP);
+    }
+
+    // Returns null if it can't be unwrapped, such as if it was written under another key.
+    @Nullable
+    private static byte[] unwrap(Key wrappingKey, String wrappedMacKey) {
+        String[] parts = wrappedMacKey.split(":", 2);
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, wrappingKey, new GCMParameterSpec(WRAP_TAG_BITS, Base64.decode(parts[0], Base64.NO_WRAP)));
+            return cipher.doFinal(Base64.decode(parts[1], Base64.NO_WRAP));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private String digest(String signedData, String signature) {
+        Mac mac = mMac;
+        if (mac != null) {
+            // Lengths are mixed in so that moving bytes between fields changes the digest.
+            update(mac, mApiKey);
+            update(mac, signedData);
+            update(mac, signature);
+            return toHex(mac.doFinal());
+        }
+
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(messageDigest, mApiKey);
+        update(messageDigest, signedData);
+        update(messageDigest, signature);
+        return toHex(messageDigest.digest());
+    }
+
+    private static void update(MessageDigest messageDigest, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        messageDigest.update(lengthOf(bytes));
+        messageDigest.update(bytes);
+    }
+
+    private static void update(Mac mac, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        mac.update(lengthOf(bytes));
+        mac.update(bytes);
+    }
+
+    private static byte[] lengthOf(byte[] bytes) {
+        int length = bytes.length;
+        return new byte[] {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length};
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}